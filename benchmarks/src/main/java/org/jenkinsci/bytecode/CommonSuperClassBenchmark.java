@@ -0,0 +1,66 @@
+package org.jenkinsci.bytecode;
+
+import org.jenkinsci.bytecode.helper.ClassLoadingReferenceTypeHierachyReader;
+import org.jenkinsci.bytecode.helper.TypeHierarchyCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code getCommonSuperClass} as done while computing stack map frames, which reads the class files
+ * of the types involved and their super types.
+ *
+ * <p>
+ * {@code uncached} is what a single transformation used to pay for each lookup, and {@code cached}
+ * is the steady state with the type hierarchy cache shared across transformations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CommonSuperClassBenchmark {
+    /**
+     * Two internal names separated by a space.
+     */
+    @Param({
+        "java/util/ArrayList java/util/LinkedList",
+        "java/lang/Integer java/lang/String",
+        "java/util/concurrent/ConcurrentHashMap java/util/TreeMap"
+    })
+    public String types;
+
+    private String type1, type2;
+    private ClassLoader loader;
+    private ClassLoadingReferenceTypeHierachyReader cached;
+
+    @Setup
+    public void setUp() {
+        String[] t = types.split(" ");
+        type1 = t[0];
+        type2 = t[1];
+        loader = getClass().getClassLoader();
+        cached = new ClassLoadingReferenceTypeHierachyReader(loader, new TypeHierarchyCache());
+    }
+
+    @Benchmark
+    public String uncached() {
+        return new ClassLoadingReferenceTypeHierachyReader(loader).getCommonSuperClass(type1, type2);
+    }
+
+    @Benchmark
+    public String cached() {
+        return cached.getCommonSuperClass(type1, type2);
+    }
+}
@@ -0,0 +1,307 @@
+package org.jenkinsci.bytecode;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Feeds every class file found in a set of jar files through {@link Transformer#transform(String, byte[], ClassLoader)},
+ * to see where the time goes when a real application starts up.
+ *
+ * <p>
+ * Point it at an unpacked {@code WEB-INF/lib} of Jenkins and its {@code plugins} directory. Jars nested inside
+ * {@code *.jpi}/{@code *.hpi}/{@code *.war} files are read too. Unless {@code --rules} is given, rules are
+ * loaded from the corpus itself, the same way an application would load them from its own modules.
+ *
+ * <p>
+ * The whole corpus is kept in memory, so give it a large enough heap. This is not a JMH benchmark,
+ * so run several passes and look at the later ones.
+ */
+public class CorpusBenchmark {
+    private final List<Image> images = new ArrayList<Image>();
+
+    /**
+     * Serves the classes of the corpus, both for stack map frame computation and for loading rules.
+     */
+    private final CorpusClassLoader loader = new CorpusClassLoader();
+
+    private long totalBytes;
+
+    public static void main(String[] args) throws Exception {
+        List<File> inputs = new ArrayList<File>();
+        List<URL> rules = new ArrayList<URL>();
+        List<Integer> threads = new ArrayList<Integer>();
+        int passes = 5;
+
+        for (int i=0; i<args.length; i++) {
+            String a = args[i];
+            if (a.equals("--rules") && i+1<args.length) {
+                for (String p : args[++i].split(File.pathSeparator))
+                    rules.add(new File(p).toURI().toURL());
+            } else if (a.equals("--threads") && i+1<args.length) {
+                for (String t : args[++i].split(","))
+                    threads.add(Integer.parseInt(t.trim()));
+            } else if (a.equals("--passes") && i+1<args.length) {
+                passes = Integer.parseInt(args[++i]);
+            } else if (a.startsWith("-")) {
+                usage();
+                return;
+            } else {
+                inputs.add(new File(a));
+            }
+        }
+        if (inputs.isEmpty()) {
+            usage();
+            return;
+        }
+        if (threads.isEmpty())
+            threads.add(1);
+
+        CorpusBenchmark b = new CorpusBenchmark();
+        for (File f : inputs)
+            b.scan(f);
+        System.out.printf(Locale.ROOT, "%d classes, %.1f MB%n", b.images.size(), b.totalBytes/1e6);
+
+        ClassLoader rulesLoader = rules.isEmpty() ? b.loader : new URLClassLoader(rules.toArray(new URL[0]), b.loader);
+        b.run(rulesLoader, threads, passes);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: java "+CorpusBenchmark.class.getName()+" [--rules CLASSPATH] [--threads N,M,...] [--passes N] DIR|JAR...");
+        System.err.println();
+        System.err.println("  --rules    Where to load the rules from. Defaults to the corpus itself.");
+        System.err.println("  --threads  Comma separated list of the number of threads to run the corpus with. Defaults to 1.");
+        System.err.println("  --passes   How many times to run the corpus with each number of threads. Defaults to 5.");
+    }
+
+    /**
+     * Collects class files from a directory tree, or from an archive.
+     */
+    private void scan(File f) throws IOException {
+        if (f.isDirectory()) {
+            File[] children = f.listFiles();
+            if (children==null)     return;
+            for (File c : children)
+                scan(c);
+        } else if (isArchive(f.getName())) {
+            try (InputStream in = new FileInputStream(f)) {
+                scan(in);
+            }
+        }
+    }
+
+    private void scan(InputStream archive) throws IOException {
+        ZipInputStream zip = new ZipInputStream(archive);
+        ZipEntry e;
+        while ((e=zip.getNextEntry())!=null) {
+            String name = e.getName();
+            if (isArchive(name)) {
+                // jar inside a plugin or a war. don't close the outer stream
+                scan(new ByteArrayInputStream(IOUtils.toByteArray(zip)));
+                continue;
+            }
+            if (name.startsWith("WEB-INF/classes/"))
+                name = name.substring("WEB-INF/classes/".length());
+            if (name.startsWith("META-INF/annotations/")) {
+                loader.add(name, IOUtils.toByteArray(zip));
+                continue;
+            }
+            if (!name.endsWith(".class") || name.startsWith("META-INF/") || name.endsWith("module-info.class"))
+                continue;
+
+            byte[] image = IOUtils.toByteArray(zip);
+            images.add(new Image(name.substring(0, name.length()-6).replace('/','.'), image));
+            loader.add(name, image);
+            totalBytes += image.length;
+        }
+    }
+
+    private static boolean isArchive(String name) {
+        return name.endsWith(".jar") || name.endsWith(".jpi") || name.endsWith(".hpi") || name.endsWith(".war");
+    }
+
+    private void run(ClassLoader rulesLoader, List<Integer> threads, int passes) throws Exception {
+        // what share of the corpus gets past the constant pool check
+        TransformationSpec spec = new TransformationSpec();
+        spec.loadRule(rulesLoader);
+        spec.compile();
+        int candidates = 0;
+        for (Image i : images) {
+            if (spec.mayNeedTransformation(i.image))
+                candidates++;
+        }
+        System.out.printf(Locale.ROOT, "%d rules, %.2f%% filtered by mayNeedTransformation%n",
+                spec.fields.size()+spec.methods.size(), 100.0*(images.size()-candidates)/images.size());
+
+        for (int n : threads) {
+            for (int pass=1; pass<=passes; pass++) {
+                // start from scratch every pass, just like a JVM that starts up
+                Transformer t = new Transformer();
+                t.loadRules(rulesLoader);
+                Result r = pass(t, n);
+                System.out.printf(Locale.ROOT, "threads=%d pass=%d: %.0f classes/s, %.1f MB/s, %.2f%% rewritten, %s allocated/class%n",
+                        n, pass,
+                        images.size()/r.seconds, totalBytes/1e6/r.seconds,
+                        100.0*r.rewritten/images.size(),
+                        r.allocated<0 ? "?" : String.format(Locale.ROOT, "%.1f KB", r.allocated/1024.0/images.size()));
+            }
+        }
+    }
+
+    /**
+     * Transforms every class in the corpus once, using the given number of threads.
+     */
+    private Result pass(final Transformer t, int threads) throws InterruptedException {
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger rewritten = new AtomicInteger();
+        final AtomicLong allocated = new AtomicLong();
+        final ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        final boolean measureAllocation = mx instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean)mx).isThreadAllocatedMemorySupported();
+
+        Thread[] workers = new Thread[threads];
+        for (int i=0; i<threads; i++) {
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    com.sun.management.ThreadMXBean amx = measureAllocation ? (com.sun.management.ThreadMXBean)mx : null;
+                    long id = Thread.currentThread().getId();
+                    long before = amx!=null ? amx.getThreadAllocatedBytes(id) : 0;
+                    int n = 0;
+                    int i;
+                    while ((i=next.getAndIncrement())<images.size()) {
+                        Image image = images.get(i);
+                        if (t.transform(image.name, image.image, loader)!=image.image)
+                            n++;
+                    }
+                    if (amx!=null)
+                        allocated.addAndGet(amx.getThreadAllocatedBytes(id)-before);
+                    rewritten.addAndGet(n);
+                }
+            }, "corpus-"+i);
+        }
+
+        long start = System.nanoTime();
+        for (Thread w : workers)
+            w.start();
+        for (Thread w : workers)
+            w.join();
+        double seconds = (System.nanoTime()-start)/1e9;
+
+        return new Result(seconds, rewritten.get(), measureAllocation ? allocated.get() : -1);
+    }
+
+    private static final class Image {
+        final String name;
+        final byte[] image;
+
+        Image(String name, byte[] image) {
+            this.name = name;
+            this.image = image;
+        }
+    }
+
+    private static final class Result {
+        final double seconds;
+        final int rewritten;
+        /**
+         * Bytes allocated by the worker threads, or -1 if the JVM can't tell.
+         */
+        final long allocated;
+
+        Result(double seconds, int rewritten, long allocated) {
+            this.seconds = seconds;
+            this.rewritten = rewritten;
+            this.allocated = allocated;
+        }
+    }
+
+    /**
+     * Class loader over the in-memory corpus. Jars nested in plugins can't be put on a {@link URLClassLoader}.
+     *
+     * <p>
+     * When the same resource is in more than one jar, the first one wins for {@link #findResource(String)},
+     * but {@link #findResources(String)} returns all of them, so that every annotation index is seen.
+     */
+    private static final class CorpusClassLoader extends ClassLoader {
+        private final Map<String,List<byte[]>> resources = new HashMap<String,List<byte[]>>();
+
+        CorpusClassLoader() {
+            // the transformer and its annotations come from here, as they would from the core of an application
+            super(CorpusBenchmark.class.getClassLoader());
+        }
+
+        void add(String name, byte[] data) {
+            List<byte[]> l = resources.get(name);
+            if (l==null)    resources.put(name, l = new ArrayList<byte[]>(1));
+            l.add(data);
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            List<byte[]> l = resources.get(name.replace('.','/')+".class");
+            if (l==null)    throw new ClassNotFoundException(name);
+            byte[] image = l.get(0);
+            return defineClass(name, image, 0, image.length);
+        }
+
+        @Override
+        protected URL findResource(String name) {
+            List<byte[]> l = resources.get(name);
+            return l==null ? null : toURL(name, l.get(0));
+        }
+
+        @Override
+        protected Enumeration<URL> findResources(String name) {
+            List<byte[]> l = resources.get(name);
+            if (l==null)    return Collections.emptyEnumeration();
+            List<URL> urls = new ArrayList<URL>(l.size());
+            for (byte[] data : l)
+                urls.add(toURL(name, data));
+            return Collections.enumeration(urls);
+        }
+
+        private static URL toURL(String name, final byte[] data) {
+            try {
+                return new URL("corpus", null, -1, "/"+name, new URLStreamHandler() {
+                    @Override
+                    protected URLConnection openConnection(URL u) {
+                        return new URLConnection(u) {
+                            @Override
+                            public void connect() {
+                            }
+
+                            @Override
+                            public InputStream getInputStream() {
+                                return new ByteArrayInputStream(data);
+                            }
+                        };
+                    }
+                });
+            } catch (MalformedURLException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+}
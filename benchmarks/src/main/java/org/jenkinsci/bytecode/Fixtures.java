@@ -0,0 +1,126 @@
+package org.jenkinsci.bytecode;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Class files and rules that the benchmarks work on.
+ *
+ * <p>
+ * They are generated, so that the numbers don't depend on what happens to be on the classpath.
+ */
+final class Fixtures {
+    private Fixtures() {}
+
+    /**
+     * Generates a class with the given number of methods.
+     *
+     * <p>
+     * Every method branches and merges {@code ArrayList} and {@code LinkedList} into the same local variable,
+     * so that computing its frames requires {@code getCommonSuperClass}.
+     *
+     * @param rewritten
+     *      If true, the first method also reads {@code legacy0} of the first class generated by {@link #rules(File, int)}.
+     */
+    static byte[] client(String internalName, int methods, boolean rewritten) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES|ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_8, ACC_PUBLIC, internalName, null, "java/lang/Object", null);
+        for (int i=0; i<methods; i++) {
+            MethodVisitor mv = cw.visitMethod(ACC_PUBLIC|ACC_STATIC, "m"+i, "(Z)Ljava/lang/Object;", null, null);
+            mv.visitCode();
+            if (i==0 && rewritten) {
+                mv.visitFieldInsn(GETSTATIC, RULES+0, "legacy0", "Ljava/lang/String;");
+                mv.visitInsn(POP);
+            }
+            Label other = new Label(), join = new Label();
+            mv.visitVarInsn(ILOAD, 0);
+            mv.visitJumpInsn(IFEQ, other);
+            newInstance(mv, "java/util/ArrayList");
+            mv.visitJumpInsn(GOTO, join);
+            mv.visitLabel(other);
+            newInstance(mv, "java/util/LinkedList");
+            mv.visitLabel(join);
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitMethodInsn(INVOKEINTERFACE, "java/util/List", "size", "()I", true);
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;", false);
+            mv.visitInsn(ARETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static void newInstance(MethodVisitor mv, String type) {
+        mv.visitTypeInsn(NEW, type);
+        mv.visitInsn(DUP);
+        mv.visitMethodInsn(INVOKESPECIAL, type, "<init>", "()V", false);
+        mv.visitVarInsn(ASTORE, 1);
+    }
+
+    /**
+     * Writes the given number of rule classes into the given directory, along with the annotation index
+     * that the annotation processor would have generated for them.
+     *
+     * <p>
+     * The {@code i}-th class has an {@code Object} field {@code field<i>} that used to be {@code String legacy<i>}.
+     *
+     * @return
+     *      A class loader that loads those rules.
+     */
+    static URLClassLoader rules(File dir, int classes) throws IOException {
+        StringBuilder index = new StringBuilder();
+        for (int i=0; i<classes; i++) {
+            ClassWriter cw = new ClassWriter(0);
+            cw.visit(V1_8, ACC_PUBLIC, RULES+i, null, "java/lang/Object", null);
+            FieldVisitor fv = cw.visitField(ACC_PUBLIC|ACC_STATIC, "field"+i, "Ljava/lang/Object;", null, null);
+            AnnotationVisitor av = fv.visitAnnotation(Type.getDescriptor(AdaptField.class), true);
+            av.visit("name", "legacy"+i);
+            AnnotationVisitor was = av.visitArray("was");
+            was.visit(null, Type.getType(String.class));
+            was.visitEnd();
+            av.visitEnd();
+            fv.visitEnd();
+            cw.visitEnd();
+
+            File f = new File(dir, RULES+i+".class");
+            FileUtils.writeByteArrayToFile(f, cw.toByteArray());
+            index.append(Type.getObjectType(RULES+i).getClassName()).append('\n');
+        }
+
+        File idx = new File(dir, "META-INF/annotations/"+AdaptField.class.getName());
+        idx.getParentFile().mkdirs();
+        try (PrintWriter w = new PrintWriter(Files.newBufferedWriter(idx.toPath(), StandardCharsets.UTF_8))) {
+            w.print(index);
+        }
+        return new URLClassLoader(new URL[] {dir.toURI().toURL()}, Fixtures.class.getClassLoader());
+    }
+
+    static byte[] imageOf(Class<?> c) throws IOException {
+        try (InputStream in = c.getClassLoader().getResourceAsStream(c.getName().replace('.','/')+".class")) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+
+    /**
+     * Prefix of the internal names of the rule classes.
+     */
+    static final String RULES = "bench/Rules";
+}
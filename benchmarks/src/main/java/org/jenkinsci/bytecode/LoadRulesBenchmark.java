@@ -0,0 +1,77 @@
+package org.jenkinsci.bytecode;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Transformer#loadRules(ClassLoader)} from a large annotation index.
+ *
+ * <p>
+ * The rule classes are loaded by the first invocation and stay loaded, so this measures the reading of the index,
+ * the reflection over the annotated members, and the compilation of the rules.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LoadRulesBenchmark {
+    /**
+     * Number of annotated classes in the index.
+     */
+    @Param({"10", "1000", "10000"})
+    public int rules;
+
+    private File dir;
+    private URLClassLoader loader;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("bct-bench").toFile();
+        loader = Fixtures.rules(dir, rules);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        loader.close();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Benchmark
+    public Transformer loadRules() throws IOException {
+        Transformer t = new Transformer();
+        t.loadRules(loader);
+        return t;
+    }
+
+    /**
+     * {@link Transformer#loadRules(java.util.Collection, java.util.concurrent.Executor)}, which reads the class files
+     * instead of reflecting over the rule classes.
+     */
+    @Benchmark
+    public Transformer loadRulesFromClassFiles() throws IOException {
+        Transformer t = new Transformer();
+        t.loadRules(Collections.singleton(loader), ForkJoinPool.commonPool());
+        return t;
+    }
+}
@@ -0,0 +1,76 @@
+package org.jenkinsci.bytecode;
+
+import org.apache.commons.io.FileUtils;
+import org.objectweb.asm.ClassReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The constant pool check that every class loaded through the transformer goes through.
+ *
+ * <p>
+ * {@code negative} is what the vast majority of classes see, so it matters the most.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MayNeedTransformationBenchmark {
+    /**
+     * Number of rules loaded.
+     */
+    @Param({"1", "100", "10000"})
+    public int rules;
+
+    private File dir;
+    private URLClassLoader loader;
+    private TransformationSpec spec;
+    private byte[] unrelated;
+    private byte[] related;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("bct-bench").toFile();
+        loader = Fixtures.rules(dir, rules);
+        spec = new TransformationSpec();
+        spec.loadRule(loader);
+        spec.compile();
+
+        unrelated = Fixtures.imageOf(ClassReader.class);
+        related = Fixtures.client("bench/Client", 50, true);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        loader.close();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Benchmark
+    public boolean negative() {
+        return spec.mayNeedTransformation(unrelated);
+    }
+
+    @Benchmark
+    public boolean positive() {
+        return spec.mayNeedTransformation(related);
+    }
+}
@@ -0,0 +1,67 @@
+package org.jenkinsci.bytecode;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Transformer#transform(String, byte[], ClassLoader)} of a class that needs rewriting,
+ * as the size of the class grows. Only one method of the class refers to a rule.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TransformBenchmark {
+    /**
+     * Number of methods in the class being transformed.
+     */
+    @Param({"1", "10", "100", "1000"})
+    public int methods;
+
+    private File dir;
+    private URLClassLoader loader;
+    private Transformer transformer;
+    private byte[] image;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("bct-bench").toFile();
+        loader = Fixtures.rules(dir, 1);
+        transformer = new Transformer();
+        transformer.loadRules(loader);
+        image = Fixtures.client("bench/Client", methods, true);
+
+        if (transformer.transform("bench.Client", image, loader)==image)
+            throw new IllegalStateException("The fixture is expected to be rewritten");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        loader.close();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Benchmark
+    public byte[] transform() {
+        return transformer.transform("bench.Client", image, loader);
+    }
+}
@@ -11,6 +11,7 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Member;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.util.List;
 
 import static java.lang.annotation.ElementType.*;
 import static java.lang.annotation.RetentionPolicy.*;
@@ -75,16 +76,47 @@ public @interface AdaptField {
             }
         }
 
+        /**
+         * Does the same as {@link #parse(TransformationSpec, AnnotatedElement)} from what the class file says,
+         * so that the class that declares the rule doesn't need to be loaded.
+         *
+         * @param owner
+         *      The class that declares the annotated member.
+         * @param access
+         *      Access flags of the annotated member.
+         * @param desc
+         *      Descriptor of the annotated member, which tells whether it's a field or a method.
+         * @param name
+         *      {@link AdaptField#name()}, or null if not specified.
+         * @param was
+         *      {@link AdaptField#was()}.
+         */
+        void parse(TransformationSpec spec, Type owner, int access, String memberName, String desc, String name, List<Type> was) {
+            if (name==null || name.length()==0)   name = memberName;
+
+            MemberAdapter mrs;
+            if (desc.startsWith("("))
+                mrs = fieldToMethod(owner, memberName, desc, (access&ACC_STATIC)!=0);
+            else
+                mrs = fieldToField(owner, memberName, Type.getType(desc));
+
+            for (Type t : was) {
+                spec.fields.addRewriteSpec(name, t.getDescriptor(), mrs);
+            }
+        }
+
         /**
          * Rewrites a field reference to another field access.
          */
         MemberAdapter fieldToField(Field f) {
-            final String newName = f.getName();
-            final Type newType = Type.getType(f.getType());
+            return fieldToField(Type.getType(f.getDeclaringClass()), f.getName(), Type.getType(f.getType()));
+        }
+
+        private MemberAdapter fieldToField(Type fieldOwner, final String newName, final Type newType) {
             final String newTypeDescriptor = newType.getDescriptor();
             final String newTypeInternalName = isReferenceType(newType) ? newType.getInternalName() : null;
 
-            return new MemberAdapter(f) {
+            return new MemberAdapter(fieldOwner) {
                 @Override
                 boolean adapt(ClassRewritingContext context, int opcode, String owner, String name, String desc, boolean intf, MethodVisitor delegate) {
                     switch (opcode) {
@@ -107,24 +139,32 @@ public @interface AdaptField {
                     }
                     return false;
                 }
+
+                @Override
+                String describe() {
+                    return super.describe()+" field "+newName+' '+newTypeDescriptor;
+                }
             };
         }
 
         MemberAdapter fieldToMethod(Method m) {
-            Class<?>[] params = m.getParameterTypes();
-            boolean isGetter = params.length==0;
+            return fieldToMethod(Type.getType(m.getDeclaringClass()), m.getName(), Type.getMethodDescriptor(m), Modifier.isStatic(m.getModifiers()));
+        }
 
-            if (Modifier.isStatic(m.getModifiers())) {
+        private MemberAdapter fieldToMethod(Type methodOwner, String name, String desc, boolean isStatic) {
+            boolean isGetter = Type.getArgumentTypes(desc).length==0;
+
+            if (isStatic) {
                 if (isGetter) {
-                    return new GetFieldAdapter(m, GETSTATIC, INVOKESTATIC);
+                    return new GetFieldAdapter(methodOwner, name, desc, GETSTATIC, INVOKESTATIC);
                 } else {
-                    return new SetFieldAdapter(m, PUTSTATIC, INVOKESTATIC);
+                    return new SetFieldAdapter(methodOwner, name, desc, PUTSTATIC, INVOKESTATIC);
                 }
             } else {// instance method
                 if (isGetter) {
-                    return new GetFieldAdapter(m, GETFIELD, INVOKEVIRTUAL);
+                    return new GetFieldAdapter(methodOwner, name, desc, GETFIELD, INVOKEVIRTUAL);
                 } else {
-                    return new SetFieldAdapter(m, PUTFIELD, INVOKEVIRTUAL);
+                    return new SetFieldAdapter(methodOwner, name, desc, PUTFIELD, INVOKEVIRTUAL);
                 }
             }
         }
@@ -143,25 +183,30 @@ public @interface AdaptField {
             final int fieldOpcode;
             final int invokeOpcode;
 
-            public FieldToMethodAdapter(Method m, int fieldOpcode, int invokeOpcode) {
-                super(m);
+            public FieldToMethodAdapter(Type owner, String name, String desc, int fieldOpcode, int invokeOpcode) {
+                super(owner);
 
-                methodName = m.getName();
-                methodDescriptor = Type.getMethodDescriptor(m);
+                methodName = name;
+                methodDescriptor = desc;
 
-                Class<?>[] params = m.getParameterTypes();
+                Type[] params = Type.getArgumentTypes(desc);
                 boolean isGetter = params.length==0;
 
-                actuallyPrimitive = isGetter ? m.getReturnType().isPrimitive() : params[0].isPrimitive();
+                actuallyPrimitive = !isReferenceType(isGetter ? Type.getReturnType(desc) : params[0]);
 
                 this.fieldOpcode = fieldOpcode;
                 this.invokeOpcode = invokeOpcode;
             }
+
+            @Override
+            String describe() {
+                return super.describe()+' '+getClass().getSimpleName()+' '+fieldOpcode+' '+invokeOpcode+' '+methodName+methodDescriptor;
+            }
         }
 
         private static class GetFieldAdapter extends FieldToMethodAdapter {
-            private GetFieldAdapter(Method m, int fieldOpcode, int invokeOpcode) {
-                super(m, fieldOpcode, invokeOpcode);
+            private GetFieldAdapter(Type owner, String name, String desc, int fieldOpcode, int invokeOpcode) {
+                super(owner, name, desc, fieldOpcode, invokeOpcode);
             }
 
             @Override
@@ -184,8 +229,8 @@ public @interface AdaptField {
         }
 
         private static class SetFieldAdapter extends FieldToMethodAdapter {
-            private SetFieldAdapter(Method m, int fieldOpcode, int invokeOpcode) {
-                super(m, fieldOpcode, invokeOpcode);
+            private SetFieldAdapter(Type owner, String name, String desc, int fieldOpcode, int invokeOpcode) {
+                super(owner, name, desc, fieldOpcode, invokeOpcode);
             }
 
             @Override
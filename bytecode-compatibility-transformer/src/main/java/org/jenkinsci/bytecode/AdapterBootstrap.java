@@ -0,0 +1,105 @@
+package org.jenkinsci.bytecode;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Bootstrap method of the {@code invokedynamic} instructions generated with {@link Transformer#setInvokeDynamic(boolean)}.
+ *
+ * <p>
+ * The owner of a member reference never changes, so which rule applies to it only needs to be decided once.
+ * This is done when the call site is linked, and the call site is bound for good to the member that the rule
+ * redirects the access to, or to the original member if no rule applies. From then on, the access costs
+ * the same as the instruction it replaced.
+ *
+ * <p>
+ * Which rule applies is decided by {@link TypeCheckSupport#isAssignableFrom(Class, String)}, so the same caveats apply,
+ * and this class has to be visible from the rewritten classes just like it.
+ */
+public final class AdapterBootstrap {
+    private AdapterBootstrap() {}
+
+    /**
+     * Links a call site that replaces a field or method instruction.
+     *
+     * @param name
+     *      Name of the member that the original instruction refers to.
+     * @param type
+     *      Operand stack effect of the original instruction.
+     * @param owner
+     *      Owner of the member that the original instruction refers to.
+     * @param opcode
+     *      The original instruction.
+     * @param rules
+     *      For each rule that matches the name and the descriptor, in the order they are checked,
+     *      the binary name of the class that declares the rule, and the opcode, the name and the descriptor of
+     *      the instruction that replaces the original one when the owner is that class or its subtype.
+     */
+    public static CallSite link(Lookup caller, String name, MethodType type, Class<?> owner, int opcode, Object... rules)
+            throws ReflectiveOperationException {
+        ClassLoader cl = caller.lookupClass().getClassLoader();
+        for (int i=0; i+3<rules.length; i+=4) {
+            if (TypeCheckSupport.isAssignableFrom(owner, (String)rules[i])) {
+                int op = (Integer)rules[i+1];
+                String n = (String)rules[i+2];
+                String desc = (String)rules[i+3];
+                MethodType t = isField(op) ? MethodType.fromMethodDescriptorString("()"+desc, cl)
+                                           : MethodType.fromMethodDescriptorString(desc, cl);
+                return new ConstantCallSite(find(caller, owner, op, n, t).asType(type));
+            }
+        }
+
+        // no rule applies, so do what the original instruction does
+        MethodType t;
+        switch (opcode) {
+        case GETFIELD:
+        case GETSTATIC:
+            t = MethodType.methodType(type.returnType());
+            break;
+        case PUTFIELD:
+            t = MethodType.methodType(type.parameterType(1));
+            break;
+        case PUTSTATIC:
+            t = MethodType.methodType(type.parameterType(0));
+            break;
+        case INVOKESTATIC:
+            t = type;
+            break;
+        default:
+            t = type.dropParameterTypes(0, 1);  // the receiver
+        }
+        // the receiver of a protected member is narrowed to the caller
+        return new ConstantCallSite(find(caller, owner, opcode, name, t).asType(type));
+    }
+
+    private static boolean isField(int opcode) {
+        return opcode==GETFIELD || opcode==GETSTATIC || opcode==PUTFIELD || opcode==PUTSTATIC;
+    }
+
+    /**
+     * Looks up the member an instruction refers to, with the access of the class the instruction is in.
+     *
+     * @param type
+     *      Descriptor of the method, or the field as the return type.
+     */
+    private static MethodHandle find(Lookup caller, Class<?> owner, int opcode, String name, MethodType type)
+            throws ReflectiveOperationException {
+        switch (opcode) {
+        case GETFIELD:      return caller.findGetter(owner, name, type.returnType());
+        case GETSTATIC:     return caller.findStaticGetter(owner, name, type.returnType());
+        case PUTFIELD:      return caller.findSetter(owner, name, type.returnType());
+        case PUTSTATIC:     return caller.findStaticSetter(owner, name, type.returnType());
+        case INVOKESTATIC:  return caller.findStatic(owner, name, type);
+        case INVOKEVIRTUAL:
+        case INVOKEINTERFACE:
+                            return caller.findVirtual(owner, name, type);
+        default:
+            throw new IllegalArgumentException("Unexpected opcode "+opcode);
+        }
+    }
+}
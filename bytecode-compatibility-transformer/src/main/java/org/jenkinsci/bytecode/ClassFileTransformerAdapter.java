@@ -0,0 +1,111 @@
+package org.jenkinsci.bytecode;
+
+import org.jenkinsci.bytecode.helper.LoggingHelper;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Applies a {@link Transformer} to every class loaded by the JVM, through {@link Instrumentation}.
+ *
+ * <p>
+ * Classes are selected by the prefix of their names and by the class of their class loader before even
+ * the constant pool is looked at, so that the JDK and the libraries that can't refer to any rule cost nothing.
+ * This is done by the {@linkplain Transformer#setClassNameFilter(ClassNameFilter) filters of the transformer},
+ * which the setters of this class configure. Classes loaded by the bootstrap class loader are never transformed.
+ *
+ * <p>
+ * Classes that are being redefined or retransformed are left alone, as the methods that the
+ * transformation adds can't be added to a class that's already loaded.
+ *
+ * @see TransformerAgent
+ */
+public class ClassFileTransformerAdapter implements ClassFileTransformer {
+    /**
+     * Packages whose classes are not transformed unless {@linkplain #setIncludes(Collection) included} explicitly.
+     */
+    public static final List<String> DEFAULT_EXCLUDES = ClassNameFilter.JDK_PACKAGES;
+
+    private final Transformer transformer;
+
+    private List<String> includes = Collections.emptyList();
+    private List<String> excludes = DEFAULT_EXCLUDES;
+
+    /**
+     * Set while this thread is transforming a class, so that the classes loaded by the transformation itself
+     * don't get transformed.
+     */
+    private final ThreadLocal<Boolean> transforming = new ThreadLocal<Boolean>();
+
+    /**
+     * @param transformer
+     *      Excludes {@link #DEFAULT_EXCLUDES} from it, unless it already has a {@linkplain Transformer#setClassNameFilter(ClassNameFilter) class name filter}.
+     */
+    public ClassFileTransformerAdapter(Transformer transformer) {
+        this.transformer = transformer;
+        if (transformer.getClassNameFilter()==null)
+            transformer.setClassNameFilter(ClassNameFilter.JDK);
+    }
+
+    public Transformer getTransformer() {
+        return transformer;
+    }
+
+    /**
+     * Only transforms classes whose names start with one of the given prefixes, such as "org.acme.".
+     *
+     * @param prefixes
+     *      Empty to transform all the classes that are not {@linkplain #setExcludes(Collection) excluded}.
+     */
+    public synchronized void setIncludes(Collection<String> prefixes) {
+        this.includes = new ArrayList<String>(prefixes);
+        transformer.setClassNameFilter(ClassNameFilter.of(includes, excludes));
+    }
+
+    /**
+     * Doesn't transform classes whose names start with one of the given prefixes,
+     * unless a longer prefix is {@linkplain #setIncludes(Collection) included}.
+     * Defaults to {@link #DEFAULT_EXCLUDES}.
+     */
+    public synchronized void setExcludes(Collection<String> prefixes) {
+        this.excludes = new ArrayList<String>(prefixes);
+        transformer.setClassNameFilter(ClassNameFilter.of(includes, excludes));
+    }
+
+    /**
+     * Doesn't transform classes loaded by the class loaders whose classes have names that start with the given prefixes,
+     * such as "jdk.internal.loader.ClassLoaders$PlatformClassLoader".
+     */
+    public void setExcludedLoaders(Collection<String> classNames) {
+        transformer.setClassLoaderFilter(ClassNameFilter.exclude(classNames));
+    }
+
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        if (classBeingRedefined!=null || loader==null || className==null)
+            return null;
+        if (transforming.get()!=null)
+            return null;    // a class needed to transform another one
+
+        transforming.set(Boolean.TRUE);
+        try {
+            byte[] r = transformer.transform(className.replace('/','.'), classfileBuffer, loader);
+            return r==classfileBuffer ? null : r;
+        } catch (Throwable t) {
+            // the JVM silently ignores exceptions thrown from here
+            LoggingHelper.asyncLog(LOGGER, Level.WARNING, t, "Failed to transform {0}", className);
+            return null;
+        } finally {
+            transforming.remove();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ClassFileTransformerAdapter.class.getName());
+}
@@ -0,0 +1,66 @@
+package org.jenkinsci.bytecode;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * A class file to be {@linkplain Transformer#transformAll(Iterable, java.util.concurrent.Executor) transformed}.
+ */
+public final class ClassImage {
+    private final String className;
+    private final byte[] image;
+    private final ClassLoader classLoader;
+
+    /**
+     * @param className
+     *      Binary name of the class, such as "java.security.KeyStore$Builder$FileBuilder$1"
+     * @param image
+     *      Class file image loaded from the disk.
+     * @param classLoader
+     *      The classloader to use when searching for a common parent of 2 classes.
+     * @see Transformer#transform(String, byte[], ClassLoader)
+     */
+    public ClassImage(String className, byte[] image, ClassLoader classLoader) {
+        this.className = className;
+        this.image = image;
+        this.classLoader = classLoader;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public byte[] getImage() {
+        return image;
+    }
+
+    public ClassLoader getClassLoader() {
+        return classLoader;
+    }
+
+    /**
+     * Reads a class file in a jar file.
+     *
+     * @param classLoader
+     *      The classloader that will load the classes in this jar.
+     * @return
+     *      null if the entry isn't a class file that a class loader would load.
+     */
+    public static ClassImage read(JarFile jar, JarEntry entry, ClassLoader classLoader) throws IOException {
+        String name = entry.getName();
+        if (entry.isDirectory() || !name.endsWith(".class") || name.startsWith("META-INF/"))
+            return null;    // multi-release versions and module-info aren't loaded by plugin class loaders
+        try (InputStream in = jar.getInputStream(entry)) {
+            return new ClassImage(name.substring(0, name.length()-6).replace('/','.'), IOUtils.toByteArray(in), classLoader);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return className;
+    }
+}
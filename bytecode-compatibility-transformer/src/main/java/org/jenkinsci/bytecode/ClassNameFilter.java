@@ -0,0 +1,121 @@
+package org.jenkinsci.bytecode;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Selects classes by the prefixes of their names, such as "org.acme." or "com.sun.".
+ *
+ * <p>
+ * The prefixes are kept in a trie, so checking a name only costs walking the characters of the longest prefix that
+ * matches it, regardless of the number of prefixes. When both an included and an excluded prefix match a name,
+ * the longer one wins, so "org.acme.api." can be included while the rest of "org.acme." is excluded.
+ * Names that match no prefix are accepted only if there's no included prefix at all.
+ *
+ * <p>
+ * Binary names ("org.acme.Foo") and internal names ("org/acme/Foo") are treated the same.
+ *
+ * @see Transformer#setClassNameFilter(ClassNameFilter)
+ */
+public final class ClassNameFilter {
+    private static final byte NONE = 0, INCLUDE = 1, EXCLUDE = 2;
+
+    /**
+     * Packages of the JDK and of the libraries this transformer uses, whose classes can't refer to any rule.
+     */
+    public static final List<String> JDK_PACKAGES = Collections.unmodifiableList(Arrays.asList(
+            "java.", "javax.", "jdk.", "sun.", "com.sun.", "org.objectweb.asm.", "org.jenkinsci.bytecode."));
+
+    /**
+     * Excludes {@link #JDK_PACKAGES}.
+     */
+    public static final ClassNameFilter JDK = exclude(JDK_PACKAGES);
+
+    /**
+     * One node of the trie, for the prefix spelled by the path from the root.
+     */
+    private static final class Node {
+        char[] labels = new char[0];
+        Node[] children = new Node[0];
+        /**
+         * What to do with the names that start with this prefix, unless a longer prefix says otherwise.
+         */
+        byte decision = NONE;
+
+        Node child(char c) {
+            for (int i=0; i<labels.length; i++) {
+                if (labels[i]==c)
+                    return children[i];
+            }
+            return null;
+        }
+
+        Node add(char c) {
+            Node n = child(c);
+            if (n==null) {
+                labels = Arrays.copyOf(labels, labels.length+1);
+                children = Arrays.copyOf(children, children.length+1);
+                labels[labels.length-1] = c;
+                children[children.length-1] = n = new Node();
+            }
+            return n;
+        }
+    }
+
+    private final Node root = new Node();
+    private final boolean hasIncludes;
+
+    private ClassNameFilter(Collection<String> includes, Collection<String> excludes) {
+        for (String p : includes)
+            put(p, INCLUDE);
+        // excluding the same prefix as included is meaningless, so let exclusion win
+        for (String p : excludes)
+            put(p, EXCLUDE);
+        this.hasIncludes = !includes.isEmpty();
+    }
+
+    private void put(String prefix, byte decision) {
+        Node n = root;
+        for (int i=0; i<prefix.length(); i++)
+            n = n.add(normalize(prefix.charAt(i)));
+        n.decision = decision;
+    }
+
+    private static char normalize(char c) {
+        return c=='/' ? '.' : c;
+    }
+
+    /**
+     * Creates a filter that accepts the names that start with any of the included prefixes
+     * (or all the names if there's none), except those that start with any of the excluded prefixes.
+     */
+    public static ClassNameFilter of(Collection<String> includes, Collection<String> excludes) {
+        return new ClassNameFilter(includes, excludes);
+    }
+
+    public static ClassNameFilter exclude(Collection<String> excludes) {
+        return new ClassNameFilter(Collections.<String>emptyList(), excludes);
+    }
+
+    public static ClassNameFilter include(Collection<String> includes) {
+        return new ClassNameFilter(includes, Collections.<String>emptyList());
+    }
+
+    /**
+     * Checks if the given class is selected by this filter.
+     */
+    public boolean accepts(String name) {
+        Node n = root;
+        byte decision = n.decision;
+        for (int i=0; i<name.length() && n!=null; i++) {
+            n = n.child(normalize(name.charAt(i)));
+            if (n!=null && n.decision!=NONE)
+                decision = n.decision;
+        }
+        if (decision==NONE)
+            return !hasIncludes;
+        return decision==INCLUDE;
+    }
+}
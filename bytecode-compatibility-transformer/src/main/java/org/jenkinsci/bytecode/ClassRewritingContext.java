@@ -1,5 +1,6 @@
 package org.jenkinsci.bytecode;
 
+import org.jenkinsci.bytecode.helper.ClassLoadingReferenceTypeHierachyReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
@@ -21,8 +22,83 @@ final class ClassRewritingContext {
     final String className;
     private final Map<Type,Integer> checkerMethods = new HashMap<Type,Integer>();
 
+    /**
+     * Reads the type hierarchy visible from the class being rewritten, or null if we don't look at it.
+     */
+    private final ClassLoadingReferenceTypeHierachyReader hierarchy;
+
+    /**
+     * Outcomes of {@link #isAssignable(Type, String)}, keyed by "suspected owner".
+     */
+    private final Map<String,Boolean> assignable = new HashMap<String,Boolean>();
+
+    /**
+     * Where to record the outcomes of {@link #isAssignable(Type, String)}, or null.
+     */
+    private final HierarchyAnswers answers;
+
+    /**
+     * Number of references left alone because {@link #isAssignable(Type, String)} said they can't refer to the member
+     * that the rule is for.
+     */
+    int unrelatedReferences;
+
+    /**
+     * Number of references rewritten without a type check because {@link #isAssignable(Type, String)} said
+     * which rule applies to them.
+     */
+    int resolvedReferences;
+
+    /**
+     * If true, type checks call {@link TypeCheckSupport} instead of the checker methods generated into the class.
+     */
+    private final boolean sharedTypeCheck;
+
+    /**
+     * If true, instructions are replaced with {@code invokedynamic} linked by {@link AdapterBootstrap} where possible.
+     */
+    final boolean invokeDynamic;
+
+    /**
+     * If true, references whose owner {@link #isAssignable(Type, String)} to the type that declares the rule
+     * are rewritten without a type check.
+     */
+    final boolean resolveTypeChecks;
+
     ClassRewritingContext(String className) {
+        this(className, null, null, false, false, false);
+    }
+
+    ClassRewritingContext(String className, ClassLoadingReferenceTypeHierachyReader hierarchy, HierarchyAnswers answers, boolean sharedTypeCheck, boolean invokeDynamic, boolean resolveTypeChecks) {
         this.className = className;
+        this.hierarchy = hierarchy;
+        this.answers = answers;
+        this.sharedTypeCheck = sharedTypeCheck;
+        this.invokeDynamic = invokeDynamic;
+        this.resolveTypeChecks = resolveTypeChecks;
+    }
+
+    /**
+     * Checks at rewrite time if the owner of a member reference is the suspected type or its subtype,
+     * which is what {@link #callTypeCheckMethod(Type, Type, MethodVisitor)} checks at runtime.
+     *
+     * @param owner
+     *      Internal name of the owner of the member reference.
+     * @return
+     *      null if we can't tell, because the type hierarchy isn't looked at, or because some of the types in it
+     *      can't be found.
+     */
+    Boolean isAssignable(Type suspected, String owner) {
+        if (hierarchy==null)    return null;
+        String key = suspected.getInternalName()+' '+owner;
+        if (assignable.containsKey(key))
+            return assignable.get(key);
+
+        Boolean r = HierarchyAnswers.isAssignable(hierarchy, suspected.getInternalName(), owner);
+        assignable.put(key, r);
+        if (answers!=null)
+            answers.assignable(suspected.getInternalName(), owner, r);
+        return r;
     }
 
     /**
@@ -35,10 +111,19 @@ final class ClassRewritingContext {
      * So we do this by using a private static helper method.
      *
      * <p>
+     * Alternatively, {@link TypeCheckSupport} compares the names of the supertypes of Bar.class,
+     * which doesn't need Foo.class at all.
+     *
+     * <p>
      * This operation manipulates the operand stack as " -> Z".
      */
     public void callTypeCheckMethod(Type suspected, Type actual, MethodVisitor base) {
         base.visitLdcInsn(actual);
+        if (sharedTypeCheck) {
+            base.visitLdcInsn(suspected.getClassName());
+            base.visitMethodInsn(INVOKESTATIC, TYPE_CHECK_SUPPORT, "isAssignableFrom", "(Ljava/lang/Class;Ljava/lang/String;)Z", false);
+            return;
+        }
         Integer idx = checkerMethods.get(suspected);
         if (idx==null)
             checkerMethods.put(suspected,idx=checkerMethods.size());
@@ -90,6 +175,7 @@ final class ClassRewritingContext {
         return "____isAssignableFrom"+idx;
     }
 
+    private static final String TYPE_CHECK_SUPPORT = Type.getInternalName(TypeCheckSupport.class);
     private static final String CHECKER_METHOD_DESCRIPTOR = "(Ljava/lang/Class;)Z";
     public static final String ILLEGAL_ACCESS_ERROR = Type.getInternalName(IllegalAccessError.class);
 }
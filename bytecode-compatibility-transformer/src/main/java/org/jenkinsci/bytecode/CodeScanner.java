@@ -0,0 +1,223 @@
+package org.jenkinsci.bytecode;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Walks the byte code of the methods of a class file in place, to find the methods
+ * that refer to the members we rewrite.
+ *
+ * <p>
+ * {@link TransformationSpec#mayNeedTransformation(byte[])} only tells us that the constant pool
+ * refers to such a member. Classes that pass that check typically have just a handful of methods that
+ * actually use it, and the rest of the methods are better copied as is than decoded by ASM.
+ * This scan only looks at the operand of the field and method instructions, so it's much cheaper
+ * than the {@link org.objectweb.asm.ClassReader} pass it saves.
+ */
+final class CodeScanner {
+    private final ConstantPoolReader pool;
+    private final byte[] image;
+
+    /**
+     * Whether each constant pool entry is a field/method reference to a member we rewrite.
+     */
+    private final boolean[] matches;
+
+    private CodeScanner(ConstantPoolReader pool, MemberRefFilter fields, MemberRefFilter methods) throws IOException {
+        this.pool = pool;
+        this.image = pool.image;
+        this.matches = new boolean[pool.size()];
+        for (int i=1; i<pool.size(); i++) {
+            switch (pool.tag(i)) {
+            case ConstantPoolReader.FIELD_REF:
+                matches[i] = pool.matches(i, fields);
+                break;
+            case ConstantPoolReader.METHOD_REF:
+            case ConstantPoolReader.INTERFACE_METHOD_REF:
+                matches[i] = pool.matches(i, methods);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Finds the methods that contain a field/method instruction referring to a member in the given filters.
+     *
+     * @return
+     *      Map from the method name concatenated with its descriptor, to whether that method uses
+     *      subroutines (JSR/RET instructions.) Methods that need no rewrite are not in the map.
+     */
+    static Map<String,Boolean> scan(ConstantPoolReader pool, MemberRefFilter fields, MemberRefFilter methods) throws IOException {
+        try {
+            return new CodeScanner(pool, fields, methods).scan();
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Truncated class file", e);
+        }
+    }
+
+    private Map<String,Boolean> scan() throws IOException {
+        Map<String,Boolean> r = new HashMap<String,Boolean>();
+
+        int p = pool.end+6;     // access flags, this class, super class
+        p += 2+2*pool.readUnsignedShort(p);     // interfaces
+        int n = pool.readUnsignedShort(p);
+        p += 2;
+        for (int i=0; i<n; i++) {
+            p = skipAttributes(p+6);    // fields
+        }
+
+        n = pool.readUnsignedShort(p);
+        p += 2;
+        for (int i=0; i<n; i++) {
+            int name = pool.readUnsignedShort(p+2);
+            int desc = pool.readUnsignedShort(p+4);
+            int attrs = pool.readUnsignedShort(p+6);
+            p += 8;
+            for (int j=0; j<attrs; j++) {
+                int len = pool.readInt(p+2);
+                if (pool.utf8Equals(pool.readUnsignedShort(p), CODE)) {
+                    int code = p+6+8;   // max stack, max locals, code length
+                    int state = scanCode(code, code+pool.readInt(p+6+4));
+                    if ((state & REWRITE)!=0)
+                        r.put(pool.utf8(name)+pool.utf8(desc), (state & SUBROUTINE)!=0);
+                }
+                p += 6+len;
+            }
+        }
+        if (p>image.length)
+            throw new IOException("Truncated class file");
+        return r;
+    }
+
+    private int skipAttributes(int p) {
+        int n = pool.readUnsignedShort(p);
+        p += 2;
+        for (int i=0; i<n; i++) {
+            p += 6+pool.readInt(p+2);
+        }
+        return p;
+    }
+
+    /**
+     * Walks the instructions between the given offsets.
+     *
+     * @return
+     *      Combination of {@link #REWRITE} and {@link #SUBROUTINE}.
+     */
+    private int scanCode(int start, int end) throws IOException {
+        if (end>image.length)
+            throw new IOException("Truncated code attribute");
+
+        int state = 0;
+        int p = start;
+        while (p<end) {
+            int opcode = image[p] & 0xFF;
+            switch (opcode) {
+            case GETSTATIC:
+            case PUTSTATIC:
+            case GETFIELD:
+            case PUTFIELD:
+            case INVOKEVIRTUAL:
+            case INVOKESPECIAL:
+            case INVOKESTATIC:
+            case INVOKEINTERFACE:
+                int index = pool.readUnsignedShort(p+1);
+                if (index<matches.length && matches[index])
+                    state |= REWRITE;
+                break;
+            case JSR:
+            case JSR_W:
+                state |= SUBROUTINE;
+                break;
+            }
+
+            int len = LENGTHS[opcode];
+            if (len>0) {
+                p += len;
+                continue;
+            }
+
+            switch (opcode) {
+            case TABLESWITCH:
+                p = align(start, p+1)+4;  // default
+                int low = pool.readInt(p);
+                int high = pool.readInt(p+4);
+                if (high<low)
+                    throw new IOException("Malformed tableswitch at "+(p-start));
+                p += 8+4*(high-low+1);
+                break;
+            case LOOKUPSWITCH:
+                p = align(start, p+1)+4;  // default
+                int npairs = pool.readInt(p);
+                if (npairs<0)
+                    throw new IOException("Malformed lookupswitch at "+(p-start));
+                p += 4+8*npairs;
+                break;
+            case WIDE:
+                p += (image[p+1] & 0xFF)==IINC ? 6 : 4;
+                break;
+            default:
+                throw new IOException("Unexpected opcode "+opcode+" at "+(p-start));
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Skips the padding that aligns the operands of the switch instructions to the 4 byte boundary.
+     */
+    private static int align(int start, int p) {
+        return p+((4-((p-start)&3))&3);
+    }
+
+    private static final byte[] CODE = MemberRefFilter.encode("Code");
+
+    private static final int REWRITE = 1;
+    private static final int SUBROUTINE = 2;
+
+    // ASM decodes these itself, and doesn't expose them in Opcodes
+    private static final int WIDE = 196;
+    private static final int JSR_W = 201;
+
+    /**
+     * Length of each instruction including its operands, or 0 for the variable length instructions
+     * and the undefined opcodes.
+     */
+    private static final byte[] LENGTHS = new byte[256];
+
+    static {
+        fill(0, 15, 1);         // nop .. dconst_1
+        fill(16, 16, 2);        // bipush
+        fill(17, 17, 3);        // sipush
+        fill(18, 18, 2);        // ldc
+        fill(19, 20, 3);        // ldc_w, ldc2_w
+        fill(21, 25, 2);        // iload .. aload
+        fill(26, 53, 1);        // iload_0 .. saload
+        fill(54, 58, 2);        // istore .. astore
+        fill(59, 131, 1);       // istore_0 .. lxor
+        fill(132, 132, 3);      // iinc
+        fill(133, 152, 1);      // i2l .. dcmpg
+        fill(153, 168, 3);      // ifeq .. jsr
+        fill(169, 169, 2);      // ret
+        fill(172, 177, 1);      // ireturn .. return
+        fill(178, 184, 3);      // getstatic .. invokestatic
+        fill(185, 186, 5);      // invokeinterface, invokedynamic
+        fill(187, 187, 3);      // new
+        fill(188, 188, 2);      // newarray
+        fill(189, 189, 3);      // anewarray
+        fill(190, 191, 1);      // arraylength, athrow
+        fill(192, 193, 3);      // checkcast, instanceof
+        fill(194, 195, 1);      // monitorenter, monitorexit
+        fill(197, 197, 4);      // multianewarray
+        fill(198, 199, 3);      // ifnull, ifnonnull
+        fill(200, 201, 5);      // goto_w, jsr_w
+    }
+
+    private static void fill(int from, int to, int len) {
+        for (int i=from; i<=to; i++)
+            LENGTHS[i] = (byte)len;
+    }
+}
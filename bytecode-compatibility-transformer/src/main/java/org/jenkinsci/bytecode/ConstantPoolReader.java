@@ -0,0 +1,200 @@
+package org.jenkinsci.bytecode;
+
+import java.io.IOException;
+
+/**
+ * Reads the constant pool of a class file in place.
+ *
+ * <p>
+ * The constructor walks the constant pool once, only to remember where each entry starts.
+ * Nothing is copied out of the class image and no string is decoded unless asked for,
+ * so checking the member references against {@link MemberRefFilter} costs next to nothing
+ * for the vast majority of classes that need no rewrite.
+ */
+final class ConstantPoolReader {
+    static final int UTF8 = 1;
+    static final int INTEGER = 3;
+    static final int FLOAT = 4;
+    static final int LONG = 5;
+    static final int DOUBLE = 6;
+    static final int CLASS = 7;
+    static final int STRING = 8;
+    static final int FIELD_REF = 9;
+    static final int METHOD_REF = 10;
+    static final int INTERFACE_METHOD_REF = 11;
+    static final int NAME_AND_TYPE = 12;
+    static final int METHOD_HANDLE = 15;
+    static final int METHOD_TYPE = 16;
+    static final int DYNAMIC = 17;
+    static final int INVOKE_DYNAMIC = 18;
+    static final int MODULE = 19;
+    static final int PACKAGE = 20;
+
+    final byte[] image;
+
+    /**
+     * Offset of the tag byte of each constant pool entry, indexed by the constant pool index.
+     * 0 for the unusable slots (index 0, and the one after each long/double.)
+     */
+    private final int[] offsets;
+
+    /**
+     * Offset of the first byte after the constant pool, which is the access flags of the class.
+     */
+    final int end;
+
+    ConstantPoolReader(byte[] image) throws IOException {
+        this.image = image;
+        if (image.length<10 || readInt(0)!=0xCAFEBABE)
+            throw new IOException("Not a class file");
+
+        int count = readUnsignedShort(8);
+        offsets = new int[count];
+        int p;
+        try {
+            p = walk(count);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Truncated constant pool", e);
+        }
+        if (p>image.length)
+            throw new IOException("Truncated constant pool");
+        end = p;
+    }
+
+    private int walk(int count) throws IOException {
+        int p = 10;
+        for (int i=1; i<count; i++) {
+            if (p>=image.length)
+                throw new IOException("Truncated constant pool");
+            offsets[i] = p;
+            int tag = image[p];
+            switch (tag) {
+            case UTF8:
+                p += 3+readUnsignedShort(p+1);
+                break;
+            case CLASS:
+            case STRING:
+            case METHOD_TYPE:
+            case MODULE:
+            case PACKAGE:
+                p += 3;
+                break;
+            case METHOD_HANDLE:
+                p += 4;
+                break;
+            case INTEGER:
+            case FLOAT:
+            case FIELD_REF:
+            case METHOD_REF:
+            case INTERFACE_METHOD_REF:
+            case NAME_AND_TYPE:
+            case DYNAMIC:
+            case INVOKE_DYNAMIC:
+                p += 5;
+                break;
+            case LONG:
+            case DOUBLE:
+                p += 9;
+                i++;    // takes up two slots
+                break;
+            default:
+                throw new IOException("Unexpected constant pool tag "+tag+" at index "+i);
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Number of slots in the constant pool, including the unusable slot 0.
+     */
+    int size() {
+        return offsets.length;
+    }
+
+    /**
+     * Tag of the entry at the given index, or 0 if the slot is unusable.
+     */
+    int tag(int index) {
+        int o = offsets[index];
+        return o==0 ? 0 : image[o];
+    }
+
+    /**
+     * Checks if the field/method reference at the given index refers to a member in the filter.
+     */
+    boolean matches(int index, MemberRefFilter filter) throws IOException {
+        int nameAndType = entry(readUnsignedShort(offsets[index]+3), NAME_AND_TYPE);
+        int name = entry(readUnsignedShort(nameAndType+1), UTF8);
+        int desc = entry(readUnsignedShort(nameAndType+3), UTF8);
+        return filter.contains(image, name+3, readUnsignedShort(name+1), desc+3, readUnsignedShort(desc+1));
+    }
+
+    /**
+     * Decodes the name of the member that the field/method reference at the given index refers to.
+     */
+    String memberName(int index) throws IOException {
+        int nameAndType = entry(readUnsignedShort(offsets[index]+3), NAME_AND_TYPE);
+        return utf8(readUnsignedShort(nameAndType+1));
+    }
+
+    /**
+     * Decodes the internal name of the owner class of the field/method reference at the given index.
+     */
+    String ownerName(int index) throws IOException {
+        int clazz = entry(readUnsignedShort(offsets[index]+1), CLASS);
+        return utf8(readUnsignedShort(clazz+1));
+    }
+
+    /**
+     * Decodes the UTF8 entry at the given index.
+     */
+    String utf8(int index) throws IOException {
+        int o = entry(index, UTF8);
+        int len = readUnsignedShort(o+1);
+        int p = o+3, e = p+len;
+        char[] buf = new char[len];
+        int n = 0;
+        while (p<e) {
+            int c = image[p++] & 0xFF;
+            if (c<0x80) {
+                buf[n++] = (char)c;
+            } else if (c<0xE0) {
+                buf[n++] = (char)(((c & 0x1F)<<6) | (image[p++] & 0x3F));
+            } else {
+                buf[n++] = (char)(((c & 0x0F)<<12) | ((image[p++] & 0x3F)<<6) | (image[p++] & 0x3F));
+            }
+        }
+        return new String(buf,0,n);
+    }
+
+    /**
+     * Checks if the UTF8 entry at the given index is the given modified UTF-8 bytes, without decoding it.
+     */
+    boolean utf8Equals(int index, byte[] expected) throws IOException {
+        int o = entry(index, UTF8);
+        int len = readUnsignedShort(o+1);
+        if (len!=expected.length)   return false;
+        for (int i=0; i<len; i++) {
+            if (image[o+3+i]!=expected[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the offset of the entry at the given index, after making sure that it's of the expected kind.
+     */
+    private int entry(int index, int tag) throws IOException {
+        if (index<=0 || index>=offsets.length || offsets[index]==0 || image[offsets[index]]!=tag)
+            throw new IOException("Constant pool index "+index+" is not of the expected type "+tag);
+        return offsets[index];
+    }
+
+    int readUnsignedShort(int p) {
+        return ((image[p] & 0xFF)<<8) | (image[p+1] & 0xFF);
+    }
+
+    int readInt(int p) {
+        return ((image[p] & 0xFF)<<24) | ((image[p+1] & 0xFF)<<16) | ((image[p+2] & 0xFF)<<8) | (image[p+3] & 0xFF);
+    }
+}
@@ -0,0 +1,122 @@
+package org.jenkinsci.bytecode;
+
+import org.jenkinsci.bytecode.helper.ClassLoadingReferenceTypeHierachyReader;
+import org.objectweb.asm.Type;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Records what the type hierarchy visible to a class loader said while a class was rewritten.
+ *
+ * <p>
+ * The byte code we generate depends on these answers, through the stack map frames computed from
+ * {@linkplain NonClassLoadingClassWriter#getCommonSuperClass(String, String) common super classes},
+ * and through the type checks {@linkplain ClassRewritingContext#isAssignable(Type, String) resolved} while rewriting.
+ * So an outcome {@linkplain TransformedClassCache cached} under one class loader can only be reused
+ * under another one, or after the libraries have been upgraded, if the hierarchy it sees gives the same answers.
+ */
+final class HierarchyAnswers {
+    private static final byte COMMON_SUPER_CLASS = 'C';
+    private static final byte ASSIGNABLE = 'A';
+
+    private final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(buf);
+
+    /**
+     * Questions already recorded, as ASM asks the same ones over and over.
+     */
+    private final Set<String> asked = new HashSet<String>();
+
+    void commonSuperClass(String type1, String type2, String answer) {
+        if (!asked.add(COMMON_SUPER_CLASS+type1+' '+type2))
+            return;
+        try {
+            out.writeByte(COMMON_SUPER_CLASS);
+            out.writeUTF(type1);
+            out.writeUTF(type2);
+            out.writeUTF(answer);
+        } catch (IOException e) {
+            throw new AssertionError(e);    // can't happen with ByteArrayOutputStream
+        }
+    }
+
+    void assignable(String suspected, String owner, Boolean answer) {
+        if (!asked.add(ASSIGNABLE+suspected+' '+owner))
+            return;
+        try {
+            out.writeByte(ASSIGNABLE);
+            out.writeUTF(suspected);
+            out.writeUTF(owner);
+            out.writeByte(answer==null ? -1 : answer ? 1 : 0);
+        } catch (IOException e) {
+            throw new AssertionError(e);    // can't happen with ByteArrayOutputStream
+        }
+    }
+
+    /**
+     * Checks if the type {@code owner} is the type {@code suspected} or its subtype.
+     *
+     * @param suspected
+     *      Internal name of the supposed supertype.
+     * @param owner
+     *      Internal name of the supposed subtype.
+     * @return
+     *      null if we can't tell, because some of the types in the hierarchy can't be found.
+     */
+    static Boolean isAssignable(ClassLoadingReferenceTypeHierachyReader reader, String suspected, String owner) {
+        try {
+            return reader.isAssignableFrom(Type.getObjectType(suspected), Type.getObjectType(owner));
+        } catch (RuntimeException e) {
+            return null;    // class not found, or not a class file
+        }
+    }
+
+    /**
+     * Returns the answers in the form {@link #holds(byte[], ClassLoadingReferenceTypeHierachyReader)} takes.
+     */
+    byte[] toByteArray() {
+        return buf.toByteArray();
+    }
+
+    /**
+     * Checks if the type hierarchy that the given reader sees still gives the recorded answers.
+     *
+     * @param reader
+     *      null if there's no class loader, in which case only the absence of answers holds.
+     */
+    static boolean holds(byte[] answers, ClassLoadingReferenceTypeHierachyReader reader) {
+        if (answers.length==0)  return true;
+        if (reader==null)       return false;
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(answers));
+        try {
+            while (in.available()>0) {
+                byte tag = in.readByte();
+                if (tag==COMMON_SUPER_CLASS) {
+                    String type1 = in.readUTF(), type2 = in.readUTF(), answer = in.readUTF();
+                    if (!answer.equals(reader.getCommonSuperClass(type1, type2)))
+                        return false;
+                } else if (tag==ASSIGNABLE) {
+                    String suspected = in.readUTF(), owner = in.readUTF();
+                    byte answer = in.readByte();
+                    if (!Objects.equals(answer<0 ? null : answer>0, isAssignable(reader, suspected, owner)))
+                        return false;
+                } else {
+                    return false;   // written by a different version
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            return false;   // corrupted
+        } catch (RuntimeException e) {
+            return false;   // a class that was there is gone
+        }
+    }
+}
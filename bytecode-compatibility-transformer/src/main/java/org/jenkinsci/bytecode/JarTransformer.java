@@ -0,0 +1,265 @@
+package org.jenkinsci.bytecode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Applies the rules of a {@link Transformer} to whole jar files ahead of time,
+ * so that the classes in them don't have to be transformed every time they are loaded.
+ *
+ * <p>
+ * The transformed jar carries the {@linkplain Transformer#getRulesFingerprint() fingerprint of the rules},
+ * followed by a hash of the transformer and ASM jars and the modes of the transformer, in its manifest.
+ * A class loader can check {@link Transformer#isTransformed(Manifest)} and skip the transformation of the classes
+ * in a jar that has already been processed by the same version of the transformer, with the same rules and modes.
+ *
+ * <p>
+ * The entries that don't change are copied without being decompressed and compressed again,
+ * so most of the time goes to reading and transforming the classes.
+ *
+ * <p>
+ * This can also be run from the command line. See {@link #main(String[])}.
+ */
+public class JarTransformer {
+    /**
+     * Main attribute of the manifest that records the fingerprint of the rules and the modes a jar was transformed with.
+     */
+    public static final Attributes.Name FINGERPRINT = new Attributes.Name("Bytecode-Compatibility-Transformer-Fingerprint");
+
+    private final Transformer transformer;
+
+    private volatile Executor executor = ForkJoinPool.commonPool();
+
+    /**
+     * How many classes are read and transformed at a time.
+     */
+    private static final int BATCH_SIZE = 256;
+
+    public JarTransformer(Transformer transformer) {
+        this.transformer = transformer;
+    }
+
+    /**
+     * Sets where the classes of a jar are transformed. Defaults to the common fork-join pool.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Transforms all the classes in a jar file and writes the result to another file.
+     *
+     * <p>
+     * Classes are read and transformed in batches, so only a batch of the original class files is in memory at a time.
+     * The rewritten ones are kept until the end, as the output is written in one pass that copies the other entries
+     * as they are, and a signed jar must be copied unchanged if nothing needs to be rewritten.
+     *
+     * @param classLoader
+     *      Class loader that can load the classes in {@code in}, and the classes they refer to.
+     *      This is used when searching for a common parent of 2 classes.
+     * @return
+     *      true if any of the classes was rewritten. {@code out} is written either way.
+     *      Signed jars whose classes need no rewrite are copied as they are, without the fingerprint.
+     * @throws IOException
+     *      if the jar is signed and any of its classes needs to be rewritten.
+     */
+    public boolean transform(File in, File out, ClassLoader classLoader) throws IOException {
+        try (JarFile jar = new JarFile(in, false)) {
+            Manifest manifest = jar.getManifest();
+            if (manifest!=null && transformer.isTransformed(manifest)) {
+                Files.copy(in.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                return false;
+            }
+
+            Map<String,byte[]> rewritten = new HashMap<String,byte[]>();
+            List<ClassImage> batch = new ArrayList<ClassImage>(BATCH_SIZE);
+            for (Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements(); ) {
+                ClassImage c = ClassImage.read(jar, e.nextElement(), classLoader);
+                if (c==null)    continue;
+                batch.add(c);
+                if (batch.size()==BATCH_SIZE)
+                    transform(batch, rewritten);
+            }
+            transform(batch, rewritten);
+            if (isSigned(jar)) {
+                // even recording the fingerprint in the manifest would invalidate the signature
+                if (!rewritten.isEmpty())
+                    throw new IOException(in+" is signed, and rewriting its classes would invalidate the signature");
+                Files.copy(in.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                return false;
+            }
+
+            if (manifest==null) {
+                manifest = new Manifest();
+                manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+            }
+            manifest.getMainAttributes().put(FINGERPRINT, transformer.transformationFingerprint());
+
+            String manifestEntry = findManifestEntry(jar);
+            if (manifestEntry!=null) {
+                ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                manifest.write(buf);
+                rewritten.put(manifestEntry, buf.toByteArray());
+                if (ZipRewriter.rewrite(in, out, rewritten))
+                    return rewritten.size()>1;
+                rewritten.remove(manifestEntry);
+            }
+
+            // the manifest needs to be added, or this is a zip file that we can't copy entries from as they are
+            try (OutputStream os = Files.newOutputStream(out.toPath());
+                 JarOutputStream jos = new JarOutputStream(os, manifest)) {
+                Enumeration<JarEntry> entries = jar.entries();
+                while (entries.hasMoreElements()) {
+                    JarEntry e = entries.nextElement();
+                    if (e.getName().equalsIgnoreCase(JarFile.MANIFEST_NAME))
+                        continue;   // already written
+
+                    byte[] image = rewritten.get(e.getName());
+                    if (image!=null) {
+                        ZipEntry ze = new ZipEntry(e.getName());
+                        ze.setTime(e.getTime());
+                        jos.putNextEntry(ze);
+                        jos.write(image);
+                    } else {
+                        ZipEntry ze = new ZipEntry(e);
+                        ze.setCompressedSize(-1);   // the deflater may not produce the same bytes
+                        jos.putNextEntry(ze);
+                        try (InputStream is = jar.getInputStream(e)) {
+                            IOUtils.copy(is, jos);
+                        }
+                    }
+                    jos.closeEntry();
+                }
+            }
+            return !rewritten.isEmpty();
+        }
+    }
+
+    /**
+     * Transforms a batch of classes in parallel, keeps the images that were rewritten, and empties the batch.
+     */
+    private void transform(List<ClassImage> batch, Map<String,byte[]> rewritten) {
+        List<byte[]> transformed = transformer.transformAll(batch, executor);
+        for (int i=0; i<batch.size(); i++) {
+            ClassImage c = batch.get(i);
+            if (transformed.get(i)!=c.getImage())
+                rewritten.put(c.getClassName().replace('.','/')+".class", transformed.get(i));
+        }
+        batch.clear();
+    }
+
+    private static String findManifestEntry(JarFile jar) {
+        Enumeration<JarEntry> entries = jar.entries();
+        while (entries.hasMoreElements()) {
+            String name = entries.nextElement().getName();
+            if (name.equalsIgnoreCase(JarFile.MANIFEST_NAME))
+                return name;
+        }
+        return null;
+    }
+
+    private static boolean isSigned(JarFile jar) {
+        Enumeration<JarEntry> entries = jar.entries();
+        while (entries.hasMoreElements()) {
+            String name = entries.nextElement().getName().toUpperCase(Locale.ENGLISH);
+            if (name.startsWith("META-INF/") && name.indexOf('/',9)<0
+             && (name.endsWith(".SF") || name.endsWith(".RSA") || name.endsWith(".DSA") || name.endsWith(".EC")))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Transforms jar files from the command line:
+     *
+     * <pre>
+     * java org.jenkinsci.bytecode.JarTransformer --rules CLASSPATH [--classpath CLASSPATH] --out DIR JAR...
+     * </pre>
+     *
+     * Rules are loaded from {@code --rules}. The classes that the jars refer to are looked up from the rules and
+     * {@code --classpath}. Transformed jars are written into {@code --out} with the same file names.
+     */
+    public static void main(String[] args) throws Exception {
+        List<URL> rules = new ArrayList<URL>();
+        List<URL> classpath = new ArrayList<URL>();
+        File out = null;
+        List<File> jars = new ArrayList<File>();
+
+        for (int i=0; i<args.length; i++) {
+            String a = args[i];
+            if (a.equals("--rules") && i+1<args.length) {
+                toURLs(args[++i], rules);
+            } else if (a.equals("--classpath") && i+1<args.length) {
+                toURLs(args[++i], classpath);
+            } else if (a.equals("--out") && i+1<args.length) {
+                out = new File(args[++i]);
+            } else if (a.startsWith("-")) {
+                usage();
+                System.exit(1);
+            } else {
+                jars.add(new File(a));
+            }
+        }
+        if (rules.isEmpty() || out==null || jars.isEmpty()) {
+            usage();
+            System.exit(1);
+        }
+
+        if (!out.isDirectory() && !out.mkdirs())
+            throw new IOException("Failed to create "+out);
+
+        try (URLClassLoader rulesLoader = new URLClassLoader(rules.toArray(new URL[0]), JarTransformer.class.getClassLoader())) {
+            Transformer t = new Transformer();
+            t.loadRules(rulesLoader);
+            JarTransformer jt = new JarTransformer(t);
+
+            for (File jar : jars) {
+                List<URL> urls = new ArrayList<URL>(classpath);
+                urls.add(0, jar.toURI().toURL());
+                try (URLClassLoader cl = new URLClassLoader(urls.toArray(new URL[0]), rulesLoader)) {
+                    File dst = new File(out, jar.getName());
+                    boolean modified = jt.transform(jar, dst, cl);
+                    System.out.println(jar+(modified ? " transformed" : " unchanged")+" to "+dst);
+                }
+            }
+        }
+    }
+
+    private static void toURLs(String path, List<URL> urls) throws IOException {
+        for (String p : path.split(File.pathSeparator)) {
+            if (p.length()>0)
+                urls.add(new File(p).toURI().toURL());
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: java "+JarTransformer.class.getName()+" --rules CLASSPATH [--classpath CLASSPATH] --out DIR JAR...");
+        System.err.println();
+        System.err.println("  --rules      Where to load the rules from.");
+        System.err.println("  --classpath  Other jars that the transformed jars refer to.");
+        System.err.println("  --out        Directory to write the transformed jars to.");
+    }
+}
@@ -4,6 +4,7 @@ import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Type;
 
 import java.lang.reflect.Member;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Adapts a single field/method.
@@ -16,6 +17,22 @@ abstract class MemberAdapter {
      */
     final Type owner;
 
+    /**
+     * Number of instructions this adapter has rewritten.
+     *
+     * <p>
+     * Adapters are shared between the rule sets a {@link Transformer} goes through,
+     * so this keeps counting across {@link Transformer#loadRules(ClassLoader)}. When an adapter is
+     * {@linkplain #compose(MemberAdapter) composed} with another rule, the composed adapter takes over this counter,
+     * so that the hits the earlier rule set records while it's still in use aren't lost.
+     */
+    LongAdder hits = new LongAdder();
+
+    /**
+     * Internal name of the class this adapter has last rewritten, if any.
+     */
+    volatile String lastMatchedClass;
+
     protected MemberAdapter(Type owner) {
         this.owner = owner;
     }
@@ -51,6 +68,32 @@ abstract class MemberAdapter {
         return false;
     }
 
+    /**
+     * Records that {@link #adapt} has rewritten an instruction in the given class.
+     */
+    void hit(String className) {
+        hits.increment();
+        if (lastMatchedClass!=className)    // avoid writing to a shared field from every thread for hot rules
+            lastMatchedClass = className;
+    }
+
+    /**
+     * Describes the rewrite this adapter performs, for {@linkplain TransformationSpec#fingerprint fingerprinting} the rules.
+     *
+     * Adapters that generate different byte code must describe themselves differently.
+     */
+    String describe() {
+        return owner.getDescriptor();
+    }
+
+    /**
+     * Checks if this adapter already performs the rewrite of the given adapter,
+     * as is the case when the same rule is loaded twice.
+     */
+    boolean includes(MemberAdapter that) {
+        return owner.equals(that.owner) && describe().equals(that.describe());
+    }
+
     /**
      * Merges multiple {@link MemberAdapter}s that rewrite
      * different accesses to the same member.
@@ -71,6 +114,18 @@ abstract class MemberAdapter {
                 return lhs.adapt(context, opcode, owner, name, desc, intf, delegate)
                     || rhs.adapt(context, opcode, owner, name, desc, intf, delegate);
             }
+
+            @Override
+            boolean includes(MemberAdapter that) {
+                return lhs.includes(that) || rhs.includes(that);
+            }
+
+            @Override
+            String describe() {
+                String l = lhs.describe(), r = rhs.describe();
+                // the order of composition depends on the order the rules were found in
+                return l.compareTo(r)<=0 ? l+" | "+r : r+" | "+l;
+            }
         };
     }
 }
@@ -0,0 +1,236 @@
+package org.jenkinsci.bytecode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Names and descriptors of the members that have rewrite rules, laid out so that a member reference
+ * can be checked directly against the modified UTF-8 bytes found in the constant pool of a class file.
+ *
+ * <p>
+ * This sits on the path of every single class that gets loaded, and most of them do not need
+ * any rewrite, so a negative answer must not decode any string nor allocate anything.
+ * Names are kept in an open-addressed table keyed by the hash of their bytes, and each name
+ * carries the handful of descriptors it has rules for.
+ *
+ * <p>
+ * Instances are immutable. {@link #plus(Collection)} makes a new one that shares the encoded names and descriptors
+ * of this one, so that adding rules only encodes the new members.
+ *
+ * @see TransformationSpec#mayNeedTransformation(byte[])
+ */
+final class MemberRefFilter {
+    /**
+     * Modified UTF-8 encoding of the names, indexed by the hash of the name. Unused slots are null.
+     */
+    private final byte[][] names;
+
+    /**
+     * Modified UTF-8 encoding of the descriptors that go with the name in the same slot of {@link #names}.
+     */
+    private final byte[][][] descriptors;
+
+    private final int mask;
+
+    private MemberRefFilter(int size) {
+        names = new byte[size][];
+        descriptors = new byte[size][][];
+        mask = size-1;
+    }
+
+    static MemberRefFilter of(Collection<NameAndType> members) {
+        return EMPTY.plus(members);
+    }
+
+    /**
+     * Returns a filter that contains the members of this one and the given ones, which must not already be in this one.
+     */
+    MemberRefFilter plus(Collection<NameAndType> members) {
+        if (members.isEmpty())  return this;
+
+        Map<String,List<String>> byName = new LinkedHashMap<String,List<String>>();
+        for (NameAndType m : members) {
+            List<String> descs = byName.get(m.name);
+            if (descs==null)    byName.put(m.name, descs = new ArrayList<String>());
+            descs.add(m.descriptor);
+        }
+
+        int count = byName.size();
+        for (byte[] n : names) {
+            if (n!=null)    count++;
+        }
+        int size = names.length;
+        while (size < count*2)  size <<= 1;   // keep the load factor under 0.5
+
+        MemberRefFilter f = new MemberRefFilter(size);
+        for (int i=0; i<names.length; i++) {
+            if (names[i]!=null)
+                f.insert(names[i], descriptors[i]);
+        }
+        for (Entry<String,List<String>> e : byName.entrySet()) {
+            byte[][] descs = new byte[e.getValue().size()][];
+            for (int j=0; j<descs.length; j++)
+                descs[j] = encode(e.getValue().get(j));
+            f.insert(encode(e.getKey()), descs);
+        }
+        return f;
+    }
+
+    /**
+     * Adds descriptors to a name, which may already have some.
+     */
+    private void insert(byte[] name, byte[][] descs) {
+        int i = hash(name, 0, name.length) & mask;
+        while (names[i]!=null) {
+            if (Arrays.equals(names[i], name)) {
+                byte[][] all = Arrays.copyOf(descriptors[i], descriptors[i].length+descs.length);
+                System.arraycopy(descs, 0, all, descriptors[i].length, descs.length);
+                descriptors[i] = all;
+                return;
+            }
+            i = (i+1) & mask;
+        }
+        names[i] = name;
+        descriptors[i] = descs;
+    }
+
+    /**
+     * Is there a rule for the member whose name and descriptor are the given ranges
+     * of modified UTF-8 bytes?
+     */
+    boolean contains(byte[] buf, int nameOffset, int nameLength, int descOffset, int descLength) {
+        int i = hash(buf, nameOffset, nameLength) & mask;
+        byte[] n;
+        while ((n=names[i])!=null) {
+            if (equals(n, buf, nameOffset, nameLength)) {
+                for (byte[] d : descriptors[i]) {
+                    if (equals(d, buf, descOffset, descLength))
+                        return true;
+                }
+                return false;
+            }
+            i = (i+1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Is there a rule for the member of the given name and descriptor?
+     */
+    boolean contains(String name, String descriptor) {
+        int i = hash(name) & mask;
+        byte[] n;
+        while ((n=names[i])!=null) {
+            if (equals(n, name)) {
+                for (byte[] d : descriptors[i]) {
+                    if (equals(d, descriptor))
+                        return true;
+                }
+                return false;
+            }
+            i = (i+1) & mask;
+        }
+        return false;
+    }
+
+    private static boolean equals(byte[] expected, byte[] buf, int offset, int length) {
+        if (expected.length!=length)    return false;
+        for (int i=0; i<length; i++) {
+            if (expected[i]!=buf[offset+i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compares the encoded bytes with a string without encoding the string into a new array.
+     */
+    private static boolean equals(byte[] expected, String s) {
+        int p = 0;
+        for (int i=0; i<s.length(); i++) {
+            char c = s.charAt(i);
+            if (c>=0x0001 && c<=0x007F) {
+                if (p+1>expected.length || expected[p++]!=(byte)c)
+                    return false;
+            } else if (c<=0x07FF) {
+                if (p+2>expected.length
+                 || expected[p++]!=(byte)(0xC0 | (c>>6))
+                 || expected[p++]!=(byte)(0x80 | (c & 0x3F)))
+                    return false;
+            } else {
+                if (p+3>expected.length
+                 || expected[p++]!=(byte)(0xE0 | (c>>12))
+                 || expected[p++]!=(byte)(0x80 | ((c>>6) & 0x3F))
+                 || expected[p++]!=(byte)(0x80 | (c & 0x3F)))
+                    return false;
+            }
+        }
+        return p==expected.length;
+    }
+
+    private static int hash(byte[] buf, int offset, int length) {
+        int h = 0;
+        for (int i=0; i<length; i++)
+            h = 31*h + buf[offset+i];
+        return spread(h);
+    }
+
+    /**
+     * Same as {@link #hash(byte[], int, int)} over the modified UTF-8 encoding of the string.
+     */
+    private static int hash(String s) {
+        int h = 0;
+        for (int i=0; i<s.length(); i++) {
+            char c = s.charAt(i);
+            if (c>=0x0001 && c<=0x007F) {
+                h = 31*h + (byte)c;
+            } else if (c<=0x07FF) {
+                h = 31*h + (byte)(0xC0 | (c>>6));
+                h = 31*h + (byte)(0x80 | (c & 0x3F));
+            } else {
+                h = 31*h + (byte)(0xE0 | (c>>12));
+                h = 31*h + (byte)(0x80 | ((c>>6) & 0x3F));
+                h = 31*h + (byte)(0x80 | (c & 0x3F));
+            }
+        }
+        return spread(h);
+    }
+
+    private static int spread(int h) {
+        return h ^ (h>>>16);
+    }
+
+    /**
+     * Encodes a string in the modified UTF-8 used by the class file format.
+     */
+    static byte[] encode(String s) {
+        int len = 0;
+        for (int i=0; i<s.length(); i++) {
+            char c = s.charAt(i);
+            len += (c>=0x0001 && c<=0x007F) ? 1 : c<=0x07FF ? 2 : 3;
+        }
+        byte[] buf = new byte[len];
+        int p = 0;
+        for (int i=0; i<s.length(); i++) {
+            char c = s.charAt(i);
+            if (c>=0x0001 && c<=0x007F) {
+                buf[p++] = (byte)c;
+            } else if (c<=0x07FF) {
+                buf[p++] = (byte)(0xC0 | (c>>6));
+                buf[p++] = (byte)(0x80 | (c & 0x3F));
+            } else {
+                buf[p++] = (byte)(0xE0 | (c>>12));
+                buf[p++] = (byte)(0x80 | ((c>>6) & 0x3F));
+                buf[p++] = (byte)(0x80 | (c & 0x3F));
+            }
+        }
+        return buf;
+    }
+
+    static final MemberRefFilter EMPTY = new MemberRefFilter(1);
+}
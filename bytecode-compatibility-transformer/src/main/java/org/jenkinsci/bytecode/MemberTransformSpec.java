@@ -1,94 +1,420 @@
 package org.jenkinsci.bytecode;
 
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Type;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map.Entry;
-import java.util.Set;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 
 import static org.objectweb.asm.Opcodes.*;
 
 /**
  * All the adapters of {@linkplain #kind a specific member type} keyed by their name and descriptor.
  *
- * Adapters that share the same name and the descriptor will be aggregated to a set.
+ * Adapters that share the same name and the descriptor will be aggregated to an array.
  * This is because at the time of rewrite we cannot statically determine which adapter
  * should be actually effective.
  *
+ * <p>
+ * The adapters are kept in an open-addressed table, which is looked up by the name and the descriptor
+ * without allocating a key. The arrays of adapters never change once they are in the table, so that
+ * a {@linkplain #MemberTransformSpec(MemberTransformSpec) copy} can share them and only
+ * replace those of the members that new rules are added to.
+ *
  * @author Kohsuke Kawaguchi
  */
-final class MemberTransformSpec extends HashMap<NameAndType,Set<MemberAdapter>> {
+final class MemberTransformSpec {
     final Kind kind;
 
+    /**
+     * Keys of the table, indexed by their hash, with linear probing. Unused slots are null.
+     * The table is kept at most half full.
+     */
+    private NameAndType[] keys;
+
+    /**
+     * Adapters of the key in the same slot of {@link #keys}.
+     */
+    private MemberAdapter[][] adapters;
+
+    private int size;
+
+    /**
+     * True while {@link #keys} and {@link #adapters} are those of the spec this one was copied from,
+     * which is in use and so must not change.
+     */
+    private boolean shared;
+
+    /**
+     * Sum of the {@linkplain #digest(NameAndType, MemberAdapter) digests} of all the rules, as four 64 bit lanes.
+     * A sum doesn't depend on the order the rules were added in, and is kept up to date as rules are added,
+     * instead of going over all the rules again.
+     */
+    private final long[] digest;
+
+    /**
+     * Keys and owners that were added since the last {@link #drainAddedKeys()} and {@link #drainAddedOwners()}.
+     */
+    private List<NameAndType> addedKeys = new ArrayList<NameAndType>();
+    private List<Type> addedOwners = new ArrayList<Type>();
+
     MemberTransformSpec(Kind kind) {
         this.kind = kind;
+        this.keys = new NameAndType[16];
+        this.adapters = new MemberAdapter[16][];
+        this.digest = new long[4];
     }
 
     /**
-     * Copy constructor.
+     * Copy constructor. The table is only copied when the copy is modified.
      */
     MemberTransformSpec(MemberTransformSpec rhs) {
         this.kind = rhs.kind;
-        for (Entry<NameAndType,Set<MemberAdapter>> e : rhs.entrySet()) {
-            put(e.getKey(),new HashSet<MemberAdapter>(e.getValue()));
+        this.keys = rhs.keys;
+        this.adapters = rhs.adapters;
+        this.size = rhs.size;
+        this.shared = true;
+        this.digest = rhs.digest.clone();
+        this.addedKeys.addAll(rhs.addedKeys);
+        this.addedOwners.addAll(rhs.addedOwners);
+    }
+
+    /**
+     * Number of distinct names and descriptors that have adapters.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the adapters of the member of the given name and descriptor, in the order they were added,
+     * or null if there's none. The array must not be modified.
+     */
+    MemberAdapter[] get(String name, String desc) {
+        return adapters[indexOf(name, desc)];
+    }
+
+    boolean containsKey(String name, String desc) {
+        return get(name, desc)!=null;
+    }
+
+    /**
+     * Lists the names and the descriptors that have adapters.
+     */
+    List<NameAndType> keys() {
+        List<NameAndType> r = new ArrayList<NameAndType>(size);
+        for (NameAndType k : keys) {
+            if (k!=null)    r.add(k);
+        }
+        return r;
+    }
+
+    /**
+     * Adds the digest of all the rules to the given lanes.
+     */
+    void addDigestTo(long[] sum) {
+        for (int i=0; i<digest.length; i++)
+            sum[i] += digest[i];
+    }
+
+    /**
+     * Returns the keys added since the last call, and forgets them.
+     */
+    List<NameAndType> drainAddedKeys() {
+        List<NameAndType> r = addedKeys;
+        addedKeys = new ArrayList<NameAndType>();
+        return r;
+    }
+
+    /**
+     * Returns the owners of the adapters added since the last call, and forgets them.
+     */
+    List<Type> drainAddedOwners() {
+        List<Type> r = addedOwners;
+        addedOwners = new ArrayList<Type>();
+        return r;
+    }
+
+    /**
+     * Hashes a single rule, which changes if and only if the byte code it generates may change.
+     */
+    private long[] digest(NameAndType key, MemberAdapter a) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);    // every JRE is required to support SHA-256
+        }
+        ByteBuffer h = ByteBuffer.wrap(md.digest((kind+" "+key+" => "+a.describe()).getBytes(StandardCharsets.UTF_8)));
+        return new long[] {h.getLong(0), h.getLong(8), h.getLong(16), h.getLong(24)};
+    }
+
+    private void addDigest(NameAndType key, MemberAdapter a, int sign) {
+        long[] d = digest(key, a);
+        for (int i=0; i<digest.length; i++)
+            digest[i] += sign*d[i];
+    }
+
+    /**
+     * Finds the slot of the given key, or the empty slot where it would go.
+     */
+    private int indexOf(String name, String desc) {
+        NameAndType[] keys = this.keys;
+        int mask = keys.length-1;
+        for (int i=NameAndType.hash(desc, name)&mask; ; i=(i+1)&mask) {
+            NameAndType k = keys[i];
+            if (k==null || k.name.equals(name) && k.descriptor.equals(desc))
+                return i;
+        }
+    }
+
+    private void put(NameAndType key, MemberAdapter[] value) {
+        if (shared) {
+            keys = keys.clone();
+            adapters = adapters.clone();
+            shared = false;
+        }
+        int i = indexOf(key.name, key.descriptor);
+        adapters[i] = value;
+        if (keys[i]==null) {
+            keys[i] = key;
+            if (++size*2>keys.length)
+                rehash(keys.length*2);
+        }
+    }
+
+    private void rehash(int capacity) {
+        NameAndType[] oldKeys = keys;
+        MemberAdapter[][] oldAdapters = adapters;
+        keys = new NameAndType[capacity];
+        adapters = new MemberAdapter[capacity][];
+        for (int j=0; j<oldKeys.length; j++) {
+            NameAndType k = oldKeys[j];
+            if (k==null)    continue;
+            int i = indexOf(k.name, k.descriptor);
+            keys[i] = k;
+            adapters[i] = oldAdapters[j];
         }
     }
 
     void addRewriteSpec(String name, Class type, MemberAdapter c) {
-        NameAndType key = new NameAndType(Type.getDescriptor(type),name);
+        addRewriteSpec(name, Type.getDescriptor(type), c);
+    }
 
-        Set<MemberAdapter> specs = get(key);
-        if (specs==null)  put(key, specs = new HashSet<MemberAdapter>());
+    void addRewriteSpec(String name, String desc, MemberAdapter c) {
+        NameAndType key = new NameAndType(desc,name);
 
-        for (MemberAdapter existing : specs) {
+        MemberAdapter[] specs = get(key.name, key.descriptor);
+        if (specs==null)  specs = new MemberAdapter[0];
+
+        for (int i=0; i<specs.length; i++) {
+            MemberAdapter existing = specs[i];
+            if (existing.includes(c)) {
+                return;     // the same rule loaded again
+            }
             if (existing.owner.equals(c.owner)) {
                 // this adapter rewrites a different access to the same member
-                specs.remove(existing);
-                specs.add(c.compose(existing));
+                MemberAdapter composed = c.compose(existing);
+                composed.hits = existing.hits;
+                composed.lastMatchedClass = existing.lastMatchedClass;
+                specs = specs.clone();
+                specs[i] = composed;
+                put(key, specs);
+                addDigest(key, existing, -1);
+                addDigest(key, composed, 1);
                 return;
             }
         }
 
-        specs.add(c);
+        if (specs.length==0)
+            addedKeys.add(key);
+        addedOwners.add(c.owner);
+        specs = Arrays.copyOf(specs, specs.length+1);
+        specs[specs.length-1] = c;
+        put(key, specs);
+        addDigest(key, c, 1);
     }
 
     public boolean rewrite(ClassRewritingContext context, int opcode, String owner, String name, String desc, boolean intf, MethodVisitor base) {
-        Set<MemberAdapter> adapters = get(new NameAndType(desc, name));
+        MemberAdapter[] all = get(name, desc);
+        Collection<MemberAdapter> adapters = null;
+        if (all!=null)
+            adapters = relevantAdapters(context, Arrays.asList(all), owner);
 
-        boolean modified = false;
-        if (adapters !=null) {
-            Label end = new Label();
-            Label next = new Label();
-            for (MemberAdapter fr : adapters) {
-                base.visitLabel(next);
-                next = new Label();
-
-                context.callTypeCheckMethod(fr.owner, Type.getObjectType(owner), base);
-                base.visitJumpInsn(IFEQ,next);
-
-                // if assignable
-                if (fr.adapt(context,opcode,owner,name,desc, intf, base)) {
-                    modified = true;
-                } else {
-                    // failed to rewrite
-                    kind.visit(base, opcode, owner, name, desc, intf);
+        if (adapters==null) {
+            kind.visit(base, opcode, owner, name, desc, intf);
+            return false;
+        }
+        if (context.resolveTypeChecks) {
+            // unrelated adapters are gone, so if the first one applies, it's the one the type checks would pick
+            MemberAdapter fr = adapters.iterator().next();
+            if (context.isAssignable(fr.owner, owner)==Boolean.TRUE) {
+                context.resolvedReferences++;
+                if (fr.adapt(context, opcode, owner, name, desc, intf, base)) {
+                    fr.hit(context.className);
+                    return true;
                 }
+                kind.visit(base, opcode, owner, name, desc, intf);
+                return false;
+            }
+        }
+        if (context.invokeDynamic && supportsInvokeDynamic(context, opcode, owner))
+            return rewriteDynamic(context, adapters, opcode, owner, name, desc, intf, base);
+        return rewriteWithTypeChecks(context, adapters, opcode, owner, name, desc, intf, base);
+    }
 
-                base.visitJumpInsn(GOTO,end);
+    /**
+     * Replaces an instruction with a chain of type checks on its owner,
+     * which picks at runtime what the first applicable adapter generates.
+     */
+    private boolean rewriteWithTypeChecks(ClassRewritingContext context, Collection<MemberAdapter> adapters, int opcode, String owner, String name, String desc, boolean intf, MethodVisitor base) {
+        boolean modified = false;
+        Label end = new Label();
+        Label next = new Label();
+        for (MemberAdapter fr : adapters) {
+            base.visitLabel(next);
+            next = new Label();
+
+            context.callTypeCheckMethod(fr.owner, Type.getObjectType(owner), base);
+            base.visitJumpInsn(IFEQ,next);
+
+            // if assignable
+            if (fr.adapt(context,opcode,owner,name,desc, intf, base)) {
+                modified = true;
+                fr.hit(context.className);
+            } else {
+                // failed to rewrite
+                kind.visit(base, opcode, owner, name, desc, intf);
             }
 
-            base.visitLabel(next);      // if this field turns out to be unrelated
-            kind.visit(base, opcode, owner, name, desc, intf);
+            base.visitJumpInsn(GOTO,end);
+        }
+
+        base.visitLabel(next);      // if this field turns out to be unrelated
+        kind.visit(base, opcode, owner, name, desc, intf);
 
-            base.visitLabel(end);   // all branches join here
-        } else {
+        base.visitLabel(end);   // all branches join here
+
+        return modified;
+    }
+
+    /**
+     * Checks if an instruction can be replaced by {@code invokedynamic}.
+     */
+    private static boolean supportsInvokeDynamic(ClassRewritingContext context, int opcode, String owner) {
+        if (owner.startsWith("["))
+            return false;   // method of an array, which can't be passed as a Class constant
+        switch (opcode) {
+        case INVOKESPECIAL:
+            return false;   // would need the caller to be the special caller
+        case PUTFIELD:
+        case PUTSTATIC:
+            // the constructor may set its own fields before calling super(), when "this" can't be passed around yet,
+            // and the initializers set the final fields, which method handles refuse to do
+            return !owner.equals(context.className);
+        default:
+            return true;
+        }
+    }
+
+    /**
+     * Replaces an instruction with {@code invokedynamic} that {@link AdapterBootstrap} links
+     * to what the first applicable adapter would have generated.
+     *
+     * <p>
+     * Each adapter is run against {@link AccessRecorder} to find out which member it accesses instead.
+     * If any of them generates anything more than an access and casts, the usual type checks are generated instead.
+     */
+    private boolean rewriteDynamic(ClassRewritingContext context, Collection<MemberAdapter> adapters, int opcode, String owner, String name, String desc, boolean intf, MethodVisitor base) {
+        List<Object> args = new ArrayList<Object>();
+        args.add(Type.getObjectType(owner));
+        args.add(opcode);
+        List<MemberAdapter> adapted = new ArrayList<MemberAdapter>();
+        for (MemberAdapter fr : adapters) {
+            AccessRecorder r = new AccessRecorder();
+            args.add(fr.owner.getClassName());
+            if (fr.adapt(context, opcode, owner, name, desc, intf, r)) {
+                if (!r.isSimpleAccessTo(owner))
+                    return rewriteWithTypeChecks(context, adapters, opcode, owner, name, desc, intf, base);
+                args.add(r.opcode);
+                args.add(r.name);
+                args.add(r.desc);
+                adapted.add(fr);
+            } else {
+                // failed to rewrite
+                args.add(opcode);
+                args.add(name);
+                args.add(desc);
+            }
+        }
+
+        if (adapted.isEmpty()) {
             kind.visit(base, opcode, owner, name, desc, intf);
+            return false;
+        }
+        for (MemberAdapter fr : adapted)
+            fr.hit(context.className);
+        base.visitInvokeDynamicInsn(name, dynamicDescriptor(opcode, owner, desc), BOOTSTRAP, args.toArray());
+        return true;
+    }
+
+    /**
+     * Computes the descriptor of {@code invokedynamic} that takes and leaves the same values on the operand stack
+     * as the given instruction.
+     */
+    private static String dynamicDescriptor(int opcode, String owner, String desc) {
+        String receiver = Type.getObjectType(owner).getDescriptor();
+        switch (opcode) {
+        case GETFIELD:      return "("+receiver+")"+desc;
+        case GETSTATIC:     return "()"+desc;
+        case PUTFIELD:      return "("+receiver+desc+")V";
+        case PUTSTATIC:     return "("+desc+")V";
+        case INVOKESTATIC:  return desc;
+        default:            return "("+receiver+desc.substring(1);
         }
+    }
 
-        return modified;
+    /**
+     * Drops the adapters whose owner the type hierarchy tells can't be reached from the owner of the reference.
+     *
+     * @return
+     *      null if none is left.
+     */
+    private Collection<MemberAdapter> relevantAdapters(ClassRewritingContext context, Collection<MemberAdapter> adapters, String owner) {
+        List<MemberAdapter> r = null;
+        for (MemberAdapter a : adapters) {
+            if (context.isAssignable(a.owner, owner)==Boolean.FALSE) {
+                if (r==null) {
+                    // first one to drop
+                    r = new ArrayList<MemberAdapter>(adapters);
+                }
+                r.remove(a);
+            }
+        }
+        if (r==null)    return adapters;
+        if (!r.isEmpty())   return r;
+        context.unrelatedReferences++;
+        return null;
+    }
+
+    /**
+     * Takes a snapshot of how often each rule has been used.
+     */
+    void collectStatistics(List<RuleStatistics> r) {
+        for (int i=0; i<keys.length; i++) {
+            if (keys[i]==null)  continue;
+            for (MemberAdapter a : adapters[i]) {
+                r.add(new RuleStatistics(kind, keys[i], a));
+            }
+        }
     }
 
     /**
@@ -99,4 +425,58 @@ final class MemberTransformSpec extends HashMap<NameAndType,Set<MemberAdapter>>
         base.visitLdcInsn(msg);
         base.visitMethodInsn(INVOKEVIRTUAL, "java/io/PrintStream","println","(Ljava/lang/String;)V", false);
     }
+
+    /**
+     * Records the member access that an adapter generates, to replicate it with {@link AdapterBootstrap}.
+     */
+    private static final class AccessRecorder extends MethodVisitor {
+        int opcode;
+        String owner, name, desc;
+        int accesses;
+        boolean others;
+
+        AccessRecorder() {
+            super(ASM9);
+        }
+
+        /**
+         * Checks if exactly one access to a member of the given owner was generated, optionally with casts,
+         * which {@link java.lang.invoke.MethodHandle#asType} does as well.
+         */
+        boolean isSimpleAccessTo(String owner) {
+            return accesses==1 && !others && owner.equals(this.owner);
+        }
+
+        private void access(int opcode, String owner, String name, String desc) {
+            this.opcode = opcode;
+            this.owner = owner;
+            this.name = name;
+            this.desc = desc;
+            accesses++;
+        }
+
+        @Override public void visitFieldInsn(int opcode, String owner, String name, String desc) { access(opcode, owner, name, desc); }
+        @Override public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+            if (opcode==INVOKESPECIAL)  others = true;
+            access(opcode, owner, name, desc);
+        }
+        @Override public void visitTypeInsn(int opcode, String type) { if (opcode!=CHECKCAST) others = true; }
+
+        @Override public void visitInsn(int opcode) { others = true; }
+        @Override public void visitIntInsn(int opcode, int operand) { others = true; }
+        @Override public void visitVarInsn(int opcode, int var) { others = true; }
+        @Override public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) { others = true; }
+        @Override public void visitJumpInsn(int opcode, Label label) { others = true; }
+        @Override public void visitLabel(Label label) { others = true; }
+        @Override public void visitLdcInsn(Object value) { others = true; }
+        @Override public void visitIincInsn(int var, int increment) { others = true; }
+        @Override public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) { others = true; }
+        @Override public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) { others = true; }
+        @Override public void visitMultiANewArrayInsn(String desc, int dims) { others = true; }
+        @Override public void visitTryCatchBlock(Label start, Label end, Label handler, String type) { others = true; }
+    }
+
+    private static final Handle BOOTSTRAP = new Handle(H_INVOKESTATIC, Type.getInternalName(AdapterBootstrap.class), "link",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/Class;I[Ljava/lang/Object;)Ljava/lang/invoke/CallSite;",
+            false);
 }
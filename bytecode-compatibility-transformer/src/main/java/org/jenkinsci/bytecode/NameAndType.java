@@ -1,7 +1,5 @@
 package org.jenkinsci.bytecode;
 
-import org.jenkinsci.constant_pool_scanner.MemberRefConstant;
-
 import java.lang.reflect.Member;
 
 /**
@@ -18,10 +16,6 @@ final class NameAndType {
         this.name = name;
     }
 
-    NameAndType(MemberRefConstant ref) {
-        this(ref.getDescriptor(),ref.getName());
-    }
-
     @Override
     public boolean equals(Object o) {
         if (o == null || !(o instanceof NameAndType)) {
@@ -34,7 +28,15 @@ final class NameAndType {
 
     @Override
     public int hashCode() {
-        return 31*name.hashCode() + descriptor.hashCode();
+        return hash(descriptor, name);
+    }
+
+    /**
+     * Computes {@link #hashCode()} of the given name and descriptor without creating an instance.
+     */
+    static int hash(String descriptor, String name) {
+        int h = 31*name.hashCode() + descriptor.hashCode();
+        return h ^ (h>>>16);
     }
 
     @Override
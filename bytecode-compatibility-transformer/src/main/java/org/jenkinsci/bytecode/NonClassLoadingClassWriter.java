@@ -28,7 +28,9 @@ import java.util.logging.Logger;
 
 import org.jenkinsci.bytecode.helper.ClassLoadingReferenceTypeHierachyReader;
 import org.jenkinsci.bytecode.helper.LoggingHelper;
+import org.jenkinsci.bytecode.helper.TypeHierarchyCache;
 
+import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 
 
@@ -41,8 +43,14 @@ final class NonClassLoadingClassWriter extends ClassWriter {
     /** Our logger */
     private final static Logger LOGGER = Logger.getLogger(NonClassLoadingClassWriter.class.getName());
     
-    /** classloader to use when looking for common superclasses */
-    private final ClassLoader classLoader;
+    /** reads type hierarchies from the classloader to use when looking for common superclasses */
+    private final ClassLoadingReferenceTypeHierachyReader hierarchyReader;
+
+    /** where to record the lookups, or null */
+    private final TransformerMetrics metrics;
+
+    /** where to record the common super classes found, or null */
+    private final HierarchyAnswers answers;
 
     /** the name of the Object.class */
     private static final String OBJECT_CLASS_DEF = "java/lang/Object";
@@ -52,8 +60,35 @@ final class NonClassLoadingClassWriter extends ClassWriter {
      * @param classLoader Classloader to be searched when searching for common superclass.
      */
     public NonClassLoadingClassWriter(ClassLoader classLoader, int flags) {
+        this(classLoader, null, flags);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param classLoader Classloader to be searched when searching for common superclass.
+     * @param cache Cache of type hierarchies shared with other writers, or null to not cache anything.
+     */
+    public NonClassLoadingClassWriter(ClassLoader classLoader, TypeHierarchyCache cache, int flags) {
         super(flags);
-        this.classLoader = classLoader;
+        this.hierarchyReader = new ClassLoadingReferenceTypeHierachyReader(classLoader, cache);
+        this.metrics = null;
+        this.answers = null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * @param classReader The class being transformed. Its constant pool is carried over, and the methods
+     *                    that are passed through unmodified are copied as is, along with their stack map frames.
+     * @param classLoader Classloader to be searched when searching for common superclass.
+     * @param cache Cache of type hierarchies shared with other writers, or null to not cache anything.
+     * @param metrics Where to record the time spent in {@link #getCommonSuperClass(String, String)}, or null.
+     * @param answers Where to record the common super classes found, which the stack map frames depend on, or null.
+     */
+    public NonClassLoadingClassWriter(ClassReader classReader, ClassLoader classLoader, TypeHierarchyCache cache, TransformerMetrics metrics, HierarchyAnswers answers, int flags) {
+        super(classReader, flags);
+        this.hierarchyReader = new ClassLoadingReferenceTypeHierachyReader(classLoader, cache);
+        this.metrics = metrics;
+        this.answers = answers;
     }
 
     /**
@@ -68,9 +103,21 @@ final class NonClassLoadingClassWriter extends ClassWriter {
      */
     @Override
     protected String getCommonSuperClass(final String type1, final String type2) {
-        LoggingHelper.asyncLog(LOGGER, Level.FINEST, "getCommonSuperClass({0}, {1})" , new Object[] {type1, type2});
-        ClassLoadingReferenceTypeHierachyReader hr = new ClassLoadingReferenceTypeHierachyReader(classLoader);
-        return hr.getCommonSuperClass(type1, type2);
+        LoggingHelper.asyncLog(LOGGER, Level.FINEST, "getCommonSuperClass({0}, {1})", type1, type2);
+        String r;
+        if (metrics==null) {
+            r = hierarchyReader.getCommonSuperClass(type1, type2);
+        } else {
+            long start = System.nanoTime();
+            try {
+                r = hierarchyReader.getCommonSuperClass(type1, type2);
+            } finally {
+                metrics.commonSuperClassTime.record(System.nanoTime()-start);
+            }
+        }
+        if (answers!=null)
+            answers.commonSuperClass(type1, type2, r);
+        return r;
     }
 
 }
@@ -0,0 +1,243 @@
+package org.jenkinsci.bytecode;
+
+import org.jenkinsci.bytecode.helper.LoggingHelper;
+import org.jvnet.hudson.annotation_indexer.Index;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.IOUtils;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Reads the rules visible from a class loader, without adding them to a {@link TransformationSpec} yet,
+ * so that many class loaders can be read concurrently and their rules added all at once.
+ *
+ * <p>
+ * This finds the same rules as {@link TransformationSpec#loadRule(ClassLoader)}, but {@link AdaptField}s are read
+ * from the class files with ASM, without loading the classes that declare them. Other annotations,
+ * and classes whose class files can't be read, are still looked at through reflection.
+ *
+ * @see Transformer#loadRules(java.util.Collection, java.util.concurrent.Executor)
+ */
+final class RuleIndexReader {
+    /**
+     * Adds each rule found to the spec.
+     */
+    private final List<Consumer<TransformationSpec>> rules = new ArrayList<Consumer<TransformationSpec>>();
+
+    private final AdaptField.FactoryImpl adaptField = new AdaptField.FactoryImpl();
+
+    private RuleIndexReader() {}
+
+    static RuleIndexReader read(ClassLoader cl) throws IOException {
+        RuleIndexReader r = new RuleIndexReader();
+        for (String annotation : readIndex(cl, AdapterAnnotation.class.getName())) {
+            if (annotation.equals(AdaptField.class.getName())) {
+                for (String className : readIndex(cl, annotation))
+                    r.readAdaptFields(cl, className);
+            } else {
+                r.reflect(cl, annotation);
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Adds the rules that were read.
+     */
+    void addTo(TransformationSpec spec) {
+        for (Consumer<TransformationSpec> r : rules)
+            r.accept(spec);
+    }
+
+    /**
+     * Lists the names of the classes that the annotation indices visible from the class loader list for the given
+     * annotation, the way {@link Index} does.
+     */
+    private static Set<String> readIndex(ClassLoader cl, String annotation) throws IOException {
+        Set<String> r = new LinkedHashSet<String>();
+        Enumeration<URL> res = cl.getResources("META-INF/annotations/"+annotation);
+        while (res.hasMoreElements()) {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(res.nextElement().openStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line=in.readLine())!=null) {
+                    line = line.trim();
+                    if (line.length()>0)    r.add(line);
+                }
+            }
+        }
+        return r;
+    }
+
+    private void readAdaptFields(ClassLoader cl, String className) {
+        byte[] image = null;
+        try (InputStream in = cl.getResourceAsStream(className.replace('.','/')+".class")) {
+            if (in!=null)   image = IOUtils.toByteArray(in);
+        } catch (IOException e) {
+            // fall through
+        }
+
+        if (image!=null) {
+            List<Consumer<TransformationSpec>> found = new ArrayList<Consumer<TransformationSpec>>();
+            try {
+                new ClassReader(image).accept(new AdaptFieldCollector(found), ClassReader.SKIP_CODE|ClassReader.SKIP_DEBUG|ClassReader.SKIP_FRAMES);
+                rules.addAll(found);
+                return;
+            } catch (RuntimeException e) {
+                LoggingHelper.asyncLog(LOGGER, Level.FINE, e, "Failed to parse {0}", className);
+            }
+        }
+
+        // let the class loader tell
+        Class<?> c;
+        try {
+            c = cl.loadClass(className);
+        } catch (ClassNotFoundException | LinkageError e) {
+            LoggingHelper.asyncLog(LOGGER, Level.FINE, e, "Failed to load {0}", className);
+            return;
+        }
+        for (Field f : c.getDeclaredFields()) {
+            if (f.isAnnotationPresent(AdaptField.class))
+                rules.add(spec -> adaptField.parse(spec, f));
+        }
+        for (Method m : c.getDeclaredMethods()) {
+            if (m.isAnnotationPresent(AdaptField.class))
+                rules.add(spec -> adaptField.parse(spec, m));
+        }
+    }
+
+    /**
+     * Reads the rules of the given annotation like {@link TransformationSpec#loadRule(ClassLoader)} does.
+     */
+    private void reflect(ClassLoader cl, String annotationName) throws IOException {
+        Class<? extends Annotation> annotation;
+        try {
+            annotation = cl.loadClass(annotationName).asSubclass(Annotation.class);
+        } catch (ClassNotFoundException | ClassCastException e) {
+            LoggingHelper.asyncLog(LOGGER, Level.WARNING, e, "Failed to load {0}", annotationName);
+            return;
+        }
+        AdapterAnnotation aa = annotation.getAnnotation(AdapterAnnotation.class);
+        if (aa==null)   return;
+
+        final AdapterAnnotationParser f;
+        try {
+            f = aa.value().newInstance();
+        } catch (InstantiationException e) {
+            LoggingHelper.asyncLog(LOGGER, Level.WARNING, e, "Failed to instantiate {0}", aa.value());
+            return;
+        } catch (IllegalAccessException e) {
+            LoggingHelper.asyncLog(LOGGER, Level.WARNING, e, "Failed to instantiate {0}", aa.value());
+            return;
+        }
+
+        for (AnnotatedElement e : Index.list(annotation, cl)) {
+            rules.add(spec -> f.parse(spec, e));
+        }
+    }
+
+    /**
+     * Finds the fields and the methods annotated with {@link AdaptField} in a class file.
+     */
+    private final class AdaptFieldCollector extends ClassVisitor {
+        private final List<Consumer<TransformationSpec>> found;
+        private Type owner;
+
+        AdaptFieldCollector(List<Consumer<TransformationSpec>> found) {
+            super(ASM9);
+            this.found = found;
+        }
+
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+            owner = Type.getObjectType(name);
+        }
+
+        @Override
+        public FieldVisitor visitField(final int access, final String name, final String desc, String signature, Object value) {
+            return new FieldVisitor(ASM9) {
+                @Override
+                public AnnotationVisitor visitAnnotation(String annotation, boolean visible) {
+                    return annotation.equals(ADAPT_FIELD) ? new Values(access, name, desc) : null;
+                }
+            };
+        }
+
+        @Override
+        public MethodVisitor visitMethod(final int access, final String name, final String desc, String signature, String[] exceptions) {
+            return new MethodVisitor(ASM9) {
+                @Override
+                public AnnotationVisitor visitAnnotation(String annotation, boolean visible) {
+                    return annotation.equals(ADAPT_FIELD) ? new Values(access, name, desc) : null;
+                }
+            };
+        }
+
+        /**
+         * Collects the values of {@link AdaptField} on one member.
+         */
+        private final class Values extends AnnotationVisitor {
+            private final int access;
+            private final String memberName, desc;
+            private String name;
+            private final List<Type> was = new ArrayList<Type>();
+
+            Values(int access, String memberName, String desc) {
+                super(ASM9);
+                this.access = access;
+                this.memberName = memberName;
+                this.desc = desc;
+            }
+
+            @Override
+            public void visit(String key, Object value) {
+                if (key.equals("name"))     name = (String)value;
+            }
+
+            @Override
+            public AnnotationVisitor visitArray(String key) {
+                if (!key.equals("was"))     return null;
+                return new AnnotationVisitor(ASM9) {
+                    @Override
+                    public void visit(String key, Object value) {
+                        was.add((Type)value);
+                    }
+                };
+            }
+
+            @Override
+            public void visitEnd() {
+                final Type owner = AdaptFieldCollector.this.owner;
+                found.add(spec -> adaptField.parse(spec, owner, access, memberName, desc, name, was));
+            }
+        }
+    }
+
+    private static final String ADAPT_FIELD = Type.getDescriptor(AdaptField.class);
+
+    private static final Logger LOGGER = Logger.getLogger(RuleIndexReader.class.getName());
+}
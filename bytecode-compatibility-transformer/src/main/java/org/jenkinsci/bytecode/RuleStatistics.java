@@ -0,0 +1,87 @@
+package org.jenkinsci.bytecode;
+
+/**
+ * How often a single rule has rewritten instructions.
+ *
+ * <p>
+ * Every rule makes {@link Transformer} look closer at all the classes that refer to a member of the same name and type,
+ * so rules that never get used are worth removing. Counts only include the classes actually rewritten by the
+ * {@link Transformer}, and not the ones whose outcome came from {@link TransformedClassCache}.
+ *
+ * @see Transformer#getRuleStatistics()
+ */
+public final class RuleStatistics {
+    private final Kind kind;
+    private final String name;
+    private final String descriptor;
+    private final String owner;
+    private final String rule;
+    private final long hits;
+    private final String lastMatchedClass;
+
+    RuleStatistics(Kind kind, NameAndType member, MemberAdapter adapter) {
+        this.kind = kind;
+        this.name = member.name;
+        this.descriptor = member.descriptor;
+        this.owner = adapter.owner.getClassName();
+        this.rule = adapter.describe();
+        this.hits = adapter.hits.sum();
+        String last = adapter.lastMatchedClass;
+        this.lastMatchedClass = last==null ? null : last.replace('/','.');
+    }
+
+    /**
+     * Returns "FIELD" or "METHOD".
+     */
+    public String getKind() {
+        return kind.name();
+    }
+
+    /**
+     * Name of the field/method whose references get rewritten.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Descriptor of the field/method whose references get rewritten.
+     */
+    public String getDescriptor() {
+        return descriptor;
+    }
+
+    /**
+     * Binary name of the class that declared the rule.
+     */
+    public String getOwner() {
+        return owner;
+    }
+
+    /**
+     * Human readable description of the rewrite.
+     */
+    public String getRule() {
+        return rule;
+    }
+
+    /**
+     * Number of instructions this rule has rewritten.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Binary name of the class this rule has last rewritten, or null if it never has.
+     */
+    public String getLastMatchedClass() {
+        return lastMatchedClass;
+    }
+
+    @Override
+    public String toString() {
+        return kind+" "+name+" "+descriptor+" in "+owner+": "+hits+" hits"
+                +(lastMatchedClass==null ? "" : ", last in "+lastMatchedClass);
+    }
+}
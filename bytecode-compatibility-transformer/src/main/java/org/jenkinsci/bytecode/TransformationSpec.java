@@ -1,20 +1,21 @@
 package org.jenkinsci.bytecode;
 
 import org.jenkinsci.bytecode.helper.LoggingHelper;
-import org.jenkinsci.constant_pool_scanner.ConstantPool;
-import org.jenkinsci.constant_pool_scanner.ConstantPoolScanner;
-import org.jenkinsci.constant_pool_scanner.FieldRefConstant;
-import org.jenkinsci.constant_pool_scanner.MethodRefConstant;
 import org.jvnet.hudson.annotation_indexer.Index;
+import org.objectweb.asm.Type;
 
 import java.io.IOException;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.AnnotatedElement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static org.jenkinsci.constant_pool_scanner.ConstantType.*;
-
 /**
  * Definition of what to transform.
  */
@@ -34,9 +35,38 @@ class TransformationSpec {
      */
     final MemberTransformSpec methods;
 
+    /**
+     * Keys of {@link #fields} and {@link #methods} in a form that's quick to check against.
+     * Needs to be updated by {@link #compile()} whenever rules are added.
+     */
+    private MemberRefFilter fieldFilter = MemberRefFilter.EMPTY, methodFilter = MemberRefFilter.EMPTY;
+
+    /**
+     * Hex-encoded hash of all the rules, which changes if and only if the byte code we generate may change.
+     * Updated by {@link #compile()}.
+     */
+    String fingerprint;
+
+    /**
+     * Counts the rule sets that a {@link Transformer} went through. Starts at 0 for the empty rule set,
+     * and goes up by one every time the rules actually change.
+     */
+    long generation;
+
+    /**
+     * Internal names of the classes that declare the members we rewrite, sorted. Updated by {@link #compile()}.
+     */
+    private String[] owners = new String[0];
+
+    /**
+     * Remembers whether each class loader can see any of the {@link #owners}.
+     */
+    private final Map<ClassLoader,Boolean> visibility = Collections.synchronizedMap(new WeakHashMap<ClassLoader,Boolean>());
+
     TransformationSpec() {
         this.fields = new MemberTransformSpec(Kind.FIELD);
         this.methods = new MemberTransformSpec(Kind.METHOD);
+        compile();
     }
 
     /**
@@ -45,6 +75,11 @@ class TransformationSpec {
     TransformationSpec(TransformationSpec that) {
         this.fields = new MemberTransformSpec(that.fields);
         this.methods = new MemberTransformSpec(that.methods);
+        this.owners = that.owners;
+        this.fieldFilter = that.fieldFilter;
+        this.methodFilter = that.methodFilter;
+        this.fingerprint = that.fingerprint;
+        this.generation = that.generation;
     }
 
     void loadRule(ClassLoader cl) throws IOException {
@@ -67,23 +102,84 @@ class TransformationSpec {
         }
     }
 
+    /**
+     * Prepares the lookup structures used by {@link #mayNeedTransformation(byte[])}
+     * and computes the {@link #fingerprint} after rules are loaded.
+     *
+     * <p>
+     * Only the rules added since the last time are looked at, but the filters and the list of owners are still
+     * copied when there are new members and owners, so that the spec currently in use isn't modified.
+     */
+    void compile() {
+        fieldFilter = fieldFilter.plus(fields.drainAddedKeys());
+        methodFilter = methodFilter.plus(methods.drainAddedKeys());
+
+        Set<String> added = new TreeSet<String>();
+        for (MemberTransformSpec spec : Arrays.asList(fields, methods)) {
+            for (Type o : spec.drainAddedOwners()) {
+                if (Arrays.binarySearch(owners, o.getInternalName())<0)
+                    added.add(o.getInternalName());
+            }
+        }
+        if (!added.isEmpty()) {
+            added.addAll(Arrays.asList(owners));
+            owners = added.toArray(new String[0]);
+            visibility.clear();
+        }
+
+        long[] digest = new long[4];
+        fields.addDigestTo(digest);
+        methods.addDigestTo(digest);
+        StringBuilder buf = new StringBuilder();
+        for (long l : digest) {
+            for (int shift=60; shift>=0; shift-=4)
+                buf.append(Character.forDigit((int)(l>>>shift)&0xF, 16));
+        }
+        fingerprint = buf.toString();
+    }
+
+    /**
+     * Checks if the given class loader can see any of the classes that declare the members we rewrite.
+     */
+    boolean isVisibleFrom(ClassLoader cl) {
+        Boolean v = visibility.get(cl);
+        if (v==null) {
+            v = false;
+            for (String o : owners) {
+                if (cl.getResource(o+".class")!=null) {
+                    v = true;
+                    break;
+                }
+            }
+            visibility.put(cl, v);
+        }
+        return v;
+    }
+
     /**
      * Looks the constant pool and determine if this class file may possibly require a rewrite
      * according to the current rules.
      */
     boolean mayNeedTransformation(byte[] image) {
         try {
-            ConstantPool p = ConstantPoolScanner.parse(image, FIELD_REF, METHOD_REF);
-            for (FieldRefConstant r : p.list(FieldRefConstant.class)) {
-                if (fields.containsKey(new NameAndType(r))) {
-                    LoggingHelper.asyncLog(LOGGER, Level.FINEST, "mayNeedTransformation returning true - fields.containsKey({0}) - {1}", r.getName(), r.getClazz());
-                    return true;
-                }
-            }
-            for (MethodRefConstant r : p.list(MethodRefConstant.class)) {
-                if (methods.containsKey(new NameAndType(r))) {
-                    LoggingHelper.asyncLog(LOGGER, Level.FINEST, "mayNeedTransformation returning true - methods.containsKey({0}) - {1}", r.getName(), r.getClazz());
-                    return true;
+            ConstantPoolReader p = new ConstantPoolReader(image);
+            for (int i=1; i<p.size(); i++) {
+                switch (p.tag(i)) {
+                case ConstantPoolReader.FIELD_REF:
+                    if (p.matches(i, fieldFilter)) {
+                        if (LOGGER.isLoggable(Level.FINEST))
+                            LoggingHelper.asyncLog(LOGGER, Level.FINEST, "mayNeedTransformation returning true - fields.containsKey({0}) - {1}", p.memberName(i), p.ownerName(i));
+                        return true;
+                    }
+                    break;
+                case ConstantPoolReader.METHOD_REF:
+                case ConstantPoolReader.INTERFACE_METHOD_REF:
+                    if (p.matches(i, methodFilter)) {
+                        if (LOGGER.isLoggable(Level.FINEST))
+                            LoggingHelper.asyncLog(LOGGER, Level.FINEST, "mayNeedTransformation returning true - methods.containsKey({0}) - {1}", p.memberName(i), p.ownerName(i));
+                        return true;
+                    }
+                    break;
                 }
             }
             LoggingHelper.asyncLog(LOGGER, Level.FINEST, "mayNeedTransformation returning false");
@@ -94,5 +190,15 @@ class TransformationSpec {
         }
     }
 
+    /**
+     * Finds the methods of the given class that refer to any of the members we rewrite.
+     * The rest of the methods can be passed through untouched.
+     *
+     * @see CodeScanner#scan(ConstantPoolReader, MemberRefFilter, MemberRefFilter)
+     */
+    Map<String,Boolean> methodsToRewrite(byte[] image) throws IOException {
+        return CodeScanner.scan(new ConstantPoolReader(image), fieldFilter, methodFilter);
+    }
+
     private static final Logger LOGGER = Logger.getLogger(TransformationSpec.class.getName());
 }
@@ -0,0 +1,432 @@
+package org.jenkinsci.bytecode;
+
+import org.jenkinsci.bytecode.helper.ClassLoadingReferenceTypeHierachyReader;
+import org.jenkinsci.bytecode.helper.LoggingHelper;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Remembers the outcome of {@link Transformer#transform(String, byte[], ClassLoader)} on disk,
+ * so that a restarted JVM that loads the same classes with the same rules doesn't have to rewrite them again.
+ *
+ * <p>
+ * Outcomes are keyed by the SHA-256 hash of the original class file image, and kept in one append-only file per
+ * rule set, named after the {@linkplain Transformer#getRulesFingerprint() fingerprint of the rules}, a hash of the
+ * transformer and ASM jars, and the modes of the transformer. Adding rules or upgrading either library changes the name,
+ * so the results computed by the earlier rules or code are never seen again by the transformer (but they remain
+ * available for the next JVM that goes through the same sequence of rules.) Each file is indexed in memory when it's first used,
+ * and lookups are a single positional read.
+ *
+ * <p>
+ * Files are touched whenever they are opened, and those that haven't been opened or written to for a while
+ * (30 days unless {@linkplain #TransformedClassCache(File, long, TimeUnit) specified otherwise}) are deleted when
+ * the cache is created. This bounds the leftovers of intermediate rule sets and of earlier versions of the transformer
+ * to what a typical sequence of restarts actually goes through.
+ *
+ * <p>
+ * Only classes that pass the constant pool check of the transformer are recorded. That check is already cheaper
+ * than hashing the class file, so there is nothing to gain from caching the classes that fail it.
+ *
+ * <p>
+ * The byte code we generate may contain stack map frames computed from the type hierarchy visible to the class loader.
+ * So each outcome is recorded along with the {@linkplain HierarchyAnswers answers} it was computed from, and is only
+ * reused if the class loader at hand still gives the same answers. A class image loaded in different environments,
+ * or before and after the libraries it depends on are upgraded, may thus have several outcomes.
+ *
+ * <p>
+ * This class is concurrency safe. If another process is using the same cache file, this JVM simply doesn't
+ * use the cache for that rule set.
+ */
+public final class TransformedClassCache implements Closeable {
+    private final File dir;
+
+    /**
+     * Segments that are currently open, keyed by the fingerprint of the rules.
+     */
+    private final Map<String,Segment> segments = new ConcurrentHashMap<String,Segment>();
+
+    /**
+     * @param dir
+     *      Directory to store the cache in. Created if it doesn't exist yet.
+     */
+    public TransformedClassCache(File dir) throws IOException {
+        this(dir, 30, TimeUnit.DAYS);
+    }
+
+    /**
+     * @param dir
+     *      Directory to store the cache in. Created if it doesn't exist yet.
+     * @param maxIdle
+     *      Files in the directory that haven't been used for this long are deleted.
+     */
+    public TransformedClassCache(File dir, long maxIdle, TimeUnit unit) throws IOException {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Failed to create "+dir);
+        prune(System.currentTimeMillis()-unit.toMillis(maxIdle));
+    }
+
+    /**
+     * Deletes the files last used before the given time.
+     */
+    private void prune(long threshold) {
+        File[] files = dir.listFiles();
+        if (files==null)    return;
+        for (File f : files) {
+            long t = f.lastModified();
+            if (f.getName().endsWith(SUFFIX) && t!=0 && t<threshold) {
+                if (f.delete())
+                    LoggingHelper.asyncLog(LOGGER, Level.FINE, "Deleted {0}, which was last used {1,date,short}", f, t);
+                else
+                    LoggingHelper.asyncLog(LOGGER, Level.WARNING, "Failed to delete {0}", f);
+            }
+        }
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Computes the key to look up a class file image with.
+     */
+    static byte[] keyOf(byte[] image) {
+        MessageDigest md = DIGEST.get();
+        md.reset();
+        return md.digest(image);
+    }
+
+    /**
+     * Looks up the outcome of a transformation.
+     *
+     * @param hierarchy
+     *      The type hierarchy visible to the class loader that is loading the class, or null if there's no class loader.
+     * @return
+     *      null if we don't know, {@link #UNMODIFIED} if the class didn't need any rewrite,
+     *      or else the rewritten class file image.
+     */
+    byte[] get(String fingerprint, byte[] key, ClassLoadingReferenceTypeHierachyReader hierarchy) {
+        Segment s = segment(fingerprint);
+        if (s==null)    return null;
+        try {
+            return s.get(key, hierarchy);
+        } catch (IOException e) {
+            LoggingHelper.asyncLog(LOGGER, Level.WARNING, e, "Failed to read from {0}", s.file);
+            return null;
+        }
+    }
+
+    /**
+     * Records the outcome of a transformation.
+     *
+     * @param rewritten
+     *      The rewritten class file image, or {@link #UNMODIFIED}.
+     * @param answers
+     *      {@link HierarchyAnswers#toByteArray()} of what the type hierarchy said during the transformation.
+     */
+    void put(String fingerprint, byte[] key, byte[] rewritten, byte[] answers) {
+        Segment s = segment(fingerprint);
+        if (s==null)    return;
+        try {
+            s.put(key, rewritten, answers);
+        } catch (IOException e) {
+            LoggingHelper.asyncLog(LOGGER, Level.WARNING, e, "Failed to write to {0}", s.file);
+        }
+    }
+
+    private Segment segment(String fingerprint) {
+        Segment s = segments.get(fingerprint);
+        if (s==null) {
+            synchronized (segments) {
+                s = segments.get(fingerprint);
+                if (s==null) {
+                    File f = new File(dir, fingerprint+SUFFIX);
+                    try {
+                        s = new Segment(f);
+                    } catch (IOException e) {
+                        LoggingHelper.asyncLog(LOGGER, Level.WARNING, e, "Failed to open {0}. Not caching", f);
+                        s = Segment.DISABLED;
+                    }
+                    segments.put(fingerprint, s);
+                }
+            }
+        }
+        return s==Segment.DISABLED ? null : s;
+    }
+
+    /**
+     * Discards everything in the cache, including files written by earlier JVMs.
+     */
+    public void clear() throws IOException {
+        synchronized (segments) {
+            close();
+            File[] files = dir.listFiles();
+            if (files!=null) {
+                for (File f : files) {
+                    if (f.getName().endsWith(SUFFIX) && !f.delete())
+                        throw new IOException("Failed to delete "+f);
+                }
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        synchronized (segments) {
+            for (Segment s : segments.values()) {
+                if (s!=Segment.DISABLED)
+                    s.close();
+            }
+            segments.clear();
+        }
+    }
+
+    /**
+     * Append-only file of the outcomes computed under a single rule set.
+     *
+     * <p>
+     * The file consists of a header followed by records, each of which is
+     * the key, the length of the rewritten image (or -1 for {@link #UNMODIFIED}), the length of the answers,
+     * the CRC32 of the lengths and the payload, and the payload: the rewritten image itself followed by the answers.
+     *
+     * <p>
+     * A crash can leave a record whose lengths made it to the disk but whose payload didn't,
+     * so the checksum is verified both when the file is indexed and when a record is read back.
+     */
+    private static final class Segment {
+        final File file;
+        private final FileChannel channel;
+        private final FileLock lock;
+        /**
+         * Positions of the length fields of the records of each key, oldest first.
+         * Arrays are replaced, never modified.
+         */
+        private final Map<ByteBuffer,long[]> index = new ConcurrentHashMap<ByteBuffer,long[]>();
+        private volatile long size;
+
+        private Segment() {
+            file = null;
+            channel = null;
+            lock = null;
+        }
+
+        Segment(File file) throws IOException {
+            this.file = file;
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            boolean success = false;
+            try {
+                FileLock l;
+                try {
+                    l = channel.tryLock();
+                } catch (OverlappingFileLockException e) {
+                    l = null;
+                }
+                if (l==null)
+                    throw new IOException(file+" is in use");
+                lock = l;
+                load();
+                // mark it as in use, so that it's not pruned
+                if (!file.setLastModified(System.currentTimeMillis()))
+                    LoggingHelper.asyncLog(LOGGER, Level.FINE, "Failed to touch {0}", file);
+                success = true;
+            } finally {
+                if (!success)
+                    channel.close();
+            }
+        }
+
+        /**
+         * Builds the index from what's already in the file, dropping everything from the first incomplete
+         * or corrupt record that a crash may have left behind.
+         */
+        private void load() throws IOException {
+            long len = channel.size();
+            byte[] header = new byte[HEADER.length];
+            if (len<HEADER.length || !Arrays.equals(HEADER, readFully(header,0))) {
+                // new or unrecognizable file. start over
+                channel.truncate(0);
+                writeFully(HEADER, 0);
+                size = HEADER.length;
+                return;
+            }
+
+            size = len;
+            long p = HEADER.length;
+            byte[] buf = new byte[KEY_LENGTH+FIELDS_LENGTH];
+            while (p+buf.length<=len) {
+                readFully(buf, p);
+                ByteBuffer bb = ByteBuffer.wrap(buf);
+                int n = bb.getInt(KEY_LENGTH);
+                int a = bb.getInt(KEY_LENGTH+4);
+                if (readPayload(p+KEY_LENGTH, n, a, bb.getInt(KEY_LENGTH+8))==null)
+                    break;
+                add(ByteBuffer.wrap(Arrays.copyOf(buf,KEY_LENGTH)), p+KEY_LENGTH);
+                p += buf.length+Math.max(n,0)+a;
+            }
+            if (p<len)
+                channel.truncate(p);
+            size = p;
+        }
+
+        private void add(ByteBuffer key, long p) {
+            long[] old = index.get(key);
+            if (old==null) {
+                index.put(key, new long[] {p});
+            } else {
+                long[] v = Arrays.copyOf(old, old.length+1);
+                v[old.length] = p;
+                index.put(key, v);
+            }
+        }
+
+        byte[] get(byte[] key, ClassLoadingReferenceTypeHierachyReader hierarchy) throws IOException {
+            long[] v = index.get(ByteBuffer.wrap(key));
+            if (v==null)    return null;
+
+            for (long p : v) {
+                ByteBuffer fields = ByteBuffer.wrap(readFully(new byte[FIELDS_LENGTH], p));
+                int n = fields.getInt(0);
+                byte[] payload = readPayload(p, n, fields.getInt(4), fields.getInt(8));
+                if (payload==null) {
+                    LoggingHelper.asyncLog(LOGGER, Level.WARNING, "Skipping a corrupt record in {0}", file);
+                    continue;
+                }
+                if (!HierarchyAnswers.holds(Arrays.copyOfRange(payload, Math.max(n,0), payload.length), hierarchy))
+                    continue;
+                if (n<0)    return UNMODIFIED;
+                return Arrays.copyOf(payload, n);
+            }
+            return null;
+        }
+
+        synchronized void put(byte[] key, byte[] rewritten, byte[] answers) throws IOException {
+            ByteBuffer k = ByteBuffer.wrap(key);
+            long[] v = index.get(k);
+            if (v!=null) {
+                for (long p : v) {
+                    ByteBuffer fields = ByteBuffer.wrap(readFully(new byte[FIELDS_LENGTH], p));
+                    int n = fields.getInt(0);
+                    int a = fields.getInt(4);
+                    if (a!=answers.length)  continue;
+                    byte[] payload = readPayload(p, n, a, fields.getInt(8));
+                    if (payload!=null && Arrays.equals(answers, Arrays.copyOfRange(payload, Math.max(n,0), payload.length)))
+                        return;     // another thread has beaten us to it
+                }
+            }
+
+            int n = rewritten==UNMODIFIED ? -1 : rewritten.length;
+            int start = KEY_LENGTH+FIELDS_LENGTH;
+            byte[] record = new byte[start+Math.max(n,0)+answers.length];
+            System.arraycopy(key, 0, record, 0, KEY_LENGTH);
+            if (n>0)
+                System.arraycopy(rewritten, 0, record, start, n);
+            System.arraycopy(answers, 0, record, start+Math.max(n,0), answers.length);
+            ByteBuffer.wrap(record).putInt(KEY_LENGTH, n).putInt(KEY_LENGTH+4, answers.length)
+                    .putInt(KEY_LENGTH+8, checksum(n, answers.length, record, start));
+
+            long p = size;
+            writeFully(record, p);
+            size = p+record.length;
+            add(k, p+KEY_LENGTH);
+        }
+
+        /**
+         * Reads the payload of the record whose length fields are at the given position.
+         *
+         * @return
+         *      null if the lengths are out of bounds or the payload doesn't match the checksum.
+         */
+        private byte[] readPayload(long p, int n, int a, int crc) throws IOException {
+            if (n<-1 || a<0 || p+FIELDS_LENGTH+Math.max(n,0)+a>size)
+                return null;
+            byte[] payload = readFully(new byte[Math.max(n,0)+a], p+FIELDS_LENGTH);
+            return checksum(n, a, payload, 0)==crc ? payload : null;
+        }
+
+        private static int checksum(int n, int a, byte[] buf, int start) {
+            CRC32 crc = new CRC32();
+            crc.update(ByteBuffer.allocate(8).putInt(n).putInt(a).array(), 0, 8);
+            crc.update(buf, start, buf.length-start);
+            return (int)crc.getValue();
+        }
+
+        private byte[] readFully(byte[] buf, long position) throws IOException {
+            ByteBuffer bb = ByteBuffer.wrap(buf);
+            while (bb.hasRemaining()) {
+                int n = channel.read(bb, position);
+                if (n<0)
+                    throw new IOException("Unexpected end of "+file);
+                position += n;
+            }
+            return buf;
+        }
+
+        private void writeFully(byte[] buf, long position) throws IOException {
+            ByteBuffer bb = ByteBuffer.wrap(buf);
+            while (bb.hasRemaining()) {
+                position += channel.write(bb, position);
+            }
+        }
+
+        void close() throws IOException {
+            try {
+                lock.release();
+            } finally {
+                channel.close();
+            }
+        }
+
+        /**
+         * Marks a rule set whose file couldn't be opened.
+         */
+        static final Segment DISABLED = new Segment();
+    }
+
+    /**
+     * Returned from {@link #get(String, byte[], ClassLoadingReferenceTypeHierachyReader)} when the class was known to need no rewrite.
+     */
+    static final byte[] UNMODIFIED = new byte[0];
+
+    private static final String SUFFIX = ".bct";
+
+    private static final int KEY_LENGTH = 32;
+
+    /**
+     * The two lengths and the checksum that follow the key of a record.
+     */
+    private static final int FIELDS_LENGTH = 12;
+
+    /**
+     * Identifies the file format. Changes to the byte code we generate are covered by
+     * {@link Transformer#IMPLEMENTATION}, which is a part of the file name.
+     */
+    private static final byte[] HEADER = {'B','C','T','C',0,0,0,4};
+
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new AssertionError(e);    // every JRE is required to support SHA-256
+            }
+        }
+    };
+
+    private static final Logger LOGGER = Logger.getLogger(TransformedClassCache.class.getName());
+}
@@ -6,11 +6,32 @@ import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.commons.JSRInlinerAdapter;
 
+import org.apache.commons.io.IOUtils;
+import org.jenkinsci.bytecode.helper.ClassLoadingReferenceTypeHierachyReader;
 import org.jenkinsci.bytecode.helper.LoggingHelper;
+import org.jenkinsci.bytecode.helper.TypeHierarchyCache;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.jar.Manifest;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,7 +46,46 @@ public class Transformer {
     
     private static Logger LOGGER = Logger.getLogger(Transformer.class.getName());
 
+    /**
+     * Identifies the code that generates the byte code, that is this library and ASM, so that classes
+     * rewritten by another version of either aren't mistaken for our own after an upgrade.
+     */
+    static final String IMPLEMENTATION = implementationDigest(Transformer.class, ClassReader.class, JSRInlinerAdapter.class);
+
     private volatile TransformationSpec spec = new TransformationSpec(); // start with empty
+
+    /**
+     * Type hierarchies read while computing stack map frames, shared across all the classes we transform.
+     */
+    private final TypeHierarchyCache hierarchyCache = new TypeHierarchyCache();
+
+    /**
+     * Where the outcome of earlier transformations are remembered, if anywhere.
+     */
+    private volatile TransformedClassCache cache;
+
+    private final TransformerMetrics metrics = new TransformerMetrics(this::getRuleStatistics);
+
+    /**
+     * Classes whose names aren't accepted by this filter are not transformed, or null to consider every class.
+     */
+    private volatile ClassNameFilter classNameFilter;
+
+    /**
+     * Classes loaded by class loaders whose class names aren't accepted by this filter are not transformed,
+     * or null to consider every class loader.
+     */
+    private volatile ClassNameFilter classLoaderFilter;
+
+    private volatile boolean skipLoadersWithoutRules;
+
+    private volatile boolean checkOwnerHierarchy;
+
+    private volatile boolean sharedTypeCheck;
+
+    private volatile boolean invokeDynamic;
+
+    private volatile boolean resolveTypeChecks;
     
     public void loadRules(ClassLoader cl) throws IOException {
         loadRules(Collections.singleton(cl));
@@ -40,15 +100,278 @@ public class Transformer {
      * The added rules are stored on top of what's already in this transformer.
      *
      * This method is concurrency safe, and can be invoked even when Transformer is already being in use.
+     *
+     * @see #getRulesGeneration()
      */
     public synchronized void loadRules(Collection<? extends ClassLoader> loaders) throws IOException {
         TransformationSpec spec = new TransformationSpec(this.spec);
         for (ClassLoader cl : loaders) {
             spec.loadRule(cl);
         }
+        install(spec);
+    }
+
+    /**
+     * Does the same as {@link #loadRules(Collection)}, but reads the rules of all the class loaders concurrently,
+     * then adds them all at once.
+     *
+     * <p>
+     * The annotation indices are read without loading the classes that declare {@link AdaptField}s,
+     * as the annotations are read from their class files. This is meant for the many class loaders of
+     * a modular application that start at once.
+     *
+     * @param executor
+     *      Reads the rules of each class loader, such as a {@link ForkJoinPool}.
+     */
+    public void loadRules(Collection<? extends ClassLoader> loaders, Executor executor) throws IOException {
+        List<CompletableFuture<RuleIndexReader>> tasks = new ArrayList<CompletableFuture<RuleIndexReader>>();
+        for (final ClassLoader cl : loaders) {
+            tasks.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return RuleIndexReader.read(cl);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, executor));
+        }
+
+        List<RuleIndexReader> readers = new ArrayList<RuleIndexReader>(tasks.size());
+        try {
+            for (CompletableFuture<RuleIndexReader> t : tasks)
+                readers.add(join(t));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        synchronized (this) {
+            TransformationSpec spec = new TransformationSpec(this.spec);
+            for (RuleIndexReader r : readers)
+                r.addTo(spec);
+            install(spec);
+        }
+    }
+
+    /**
+     * Makes the given rules current, unless they are the same as the current ones.
+     */
+    private synchronized void install(TransformationSpec spec) {
+        spec.compile();
+        if (spec.fingerprint.equals(this.spec.fingerprint)) {
+            return;     // nothing new
+        }
+        spec.generation++;
         this.spec = spec;
     }
 
+    /**
+     * Returns a hash of all the rules currently loaded.
+     *
+     * <p>
+     * Two transformers with the same fingerprint have the same rules. They only rewrite a given class file to
+     * the same byte code if they also have the same modes, such as {@link #setInvokeDynamic(boolean)},
+     * and see the same type hierarchy from the class loader. {@link TransformedClassCache} and {@link JarTransformer}
+     * take the modes into account, so this alone is not enough to key caches of transformed classes.
+     *
+     * @return
+     *      Hex-encoded string that only depends on the contents of the rules, not the order they were loaded in.
+     */
+    public String getRulesFingerprint() {
+        return spec.fingerprint;
+    }
+
+    /**
+     * Checks if the classes of a jar file have already been transformed with the current rules and modes
+     * by {@link JarTransformer} of the same version as this one, in which case they don't need to be transformed
+     * again when they are loaded.
+     *
+     * @param manifest
+     *      Manifest of the jar file.
+     */
+    public boolean isTransformed(Manifest manifest) {
+        return transformationFingerprint().equals(manifest.getMainAttributes().getValue(JarTransformer.FINGERPRINT));
+    }
+
+    /**
+     * Identifies the current rules, the version of the transformer, and its modes,
+     * which is what {@link JarTransformer} records in the manifest.
+     */
+    String transformationFingerprint() {
+        return transformationFingerprint(spec);
+    }
+
+    /**
+     * Returns a number that goes up by one every time {@link #loadRules(Collection)} actually changes the rules.
+     *
+     * <p>
+     * This is cheaper to compare than {@link #getRulesFingerprint()}, but only meaningful within this transformer.
+     *
+     * @return
+     *      0 until any rule is loaded.
+     */
+    public long getRulesGeneration() {
+        return spec.generation;
+    }
+
+    /**
+     * Remembers the outcome of transformations in the given cache, and reuses what's already there.
+     *
+     * @param cache
+     *      null to stop caching.
+     */
+    public void setCache(TransformedClassCache cache) {
+        this.cache = cache;
+    }
+
+    public TransformedClassCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Returns the statistics of the transformations done by this transformer so far.
+     */
+    public TransformerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Only transforms the classes whose names are accepted by the given filter, such as {@link ClassNameFilter#JDK}.
+     *
+     * <p>
+     * This is checked before anything else, so classes that are filtered out cost next to nothing.
+     *
+     * @param filter
+     *      null to consider all the classes.
+     */
+    public void setClassNameFilter(ClassNameFilter filter) {
+        this.classNameFilter = filter;
+    }
+
+    public ClassNameFilter getClassNameFilter() {
+        return classNameFilter;
+    }
+
+    /**
+     * Only transforms the classes loaded by class loaders whose own class names are accepted by the given filter.
+     *
+     * @param filter
+     *      null to consider all the class loaders.
+     */
+    public void setClassLoaderFilter(ClassNameFilter filter) {
+        this.classLoaderFilter = filter;
+    }
+
+    public ClassNameFilter getClassLoaderFilter() {
+        return classLoaderFilter;
+    }
+
+    /**
+     * If true, classes are not transformed when their class loader can't see any of the classes that declare rules.
+     *
+     * <p>
+     * A class can only refer to a member that the rules rewrite if it can see the class that declares it, so this
+     * skips the classes of the JDK and of the libraries that sit below the module system, without having to list them.
+     * Which class loaders can see which rules is remembered until the rules change.
+     *
+     * <p>
+     * This assumes that a class loader can see every class that the classes it can see extend, which is the case
+     * with parent-first delegation, but not necessarily with arbitrary class loader graphs.
+     */
+    public void setSkipLoadersWithoutRules(boolean skip) {
+        this.skipLoadersWithoutRules = skip;
+    }
+
+    public boolean isSkipLoadersWithoutRules() {
+        return skipLoadersWithoutRules;
+    }
+
+    /**
+     * If true, references to a member with a rule are only rewritten if the type hierarchy of their owner,
+     * as read from the class files visible to the class loader, can lead to the class that declares the rule.
+     *
+     * <p>
+     * Rules match members by their name and descriptor only, because a reference to an inherited member names
+     * the subtype as its owner. So without this, every reference to a commonly named member, such as a
+     * {@code String name} field, gets rewritten to a type check at runtime. When the hierarchy can't be read,
+     * such as when a class is missing, the reference is rewritten as usual.
+     *
+     * <p>
+     * This assumes that the class files visible from the class loader are those of the classes it loads.
+     *
+     * @see TransformerMetrics#getUnrelatedReferences()
+     */
+    public void setCheckOwnerHierarchy(boolean check) {
+        this.checkOwnerHierarchy = check;
+    }
+
+    public boolean isCheckOwnerHierarchy() {
+        return checkOwnerHierarchy;
+    }
+
+    /**
+     * If true, rewritten instructions check the type of the owner of the member they access by calling
+     * {@link TypeCheckSupport}, instead of a private method generated into every rewritten class.
+     *
+     * <p>
+     * This saves a method per suspected type in every rewritten class, and lets the JIT see a single type check.
+     * See {@link TypeCheckSupport} for what this requires, and how its type check differs.
+     */
+    public void setSharedTypeCheck(boolean shared) {
+        this.sharedTypeCheck = shared;
+    }
+
+    public boolean isSharedTypeCheck() {
+        return sharedTypeCheck;
+    }
+
+    /**
+     * If true, instructions that refer to a member with a rule are replaced with {@code invokedynamic},
+     * whose {@linkplain AdapterBootstrap bootstrap method} decides which rule applies once for each call site,
+     * instead of checking the type of the owner every time the instruction runs.
+     *
+     * <p>
+     * This only applies to class files of Java 7 and later, and not to {@code invokespecial} nor to
+     * the fields of the class itself being set. Those are rewritten as usual.
+     * {@link AdapterBootstrap} has to be visible from the transformed classes, like {@link TypeCheckSupport}.
+     */
+    public void setInvokeDynamic(boolean invokeDynamic) {
+        this.invokeDynamic = invokeDynamic;
+    }
+
+    public boolean isInvokeDynamic() {
+        return invokeDynamic;
+    }
+
+    /**
+     * If true, the type checks that decide which rule applies to a reference are done while the class is rewritten,
+     * from the type hierarchy of the owner of the reference as read from the class files visible to the class loader.
+     * When the owner turns out to be the class that declares a rule or its subtype, the reference is rewritten
+     * as the rule says, without checking anything at runtime.
+     *
+     * <p>
+     * This implies {@link #setCheckOwnerHierarchy(boolean)}, and relies on the same assumption.
+     * References whose hierarchy can't be read are checked at runtime as usual.
+     *
+     * @see TransformerMetrics#getResolvedReferences()
+     */
+    public void setResolveTypeChecks(boolean resolve) {
+        this.resolveTypeChecks = resolve;
+    }
+
+    public boolean isResolveTypeChecks() {
+        return resolveTypeChecks;
+    }
+
+    /**
+     * Returns how often each rule of the current rule set has been used, including the rules that never have.
+     */
+    public List<RuleStatistics> getRuleStatistics() {
+        TransformationSpec spec = this.spec;
+        List<RuleStatistics> r = new ArrayList<RuleStatistics>();
+        spec.fields.collectStatistics(r);
+        spec.methods.collectStatistics(r);
+        return r;
+    }
+
     /**
      * Transforms a class file.
      *
@@ -78,62 +401,270 @@ public class Transformer {
      *      Transformed byte code.
      */
     public byte[] transform(final String className, byte[] image, ClassLoader classLoader) {
+        return transform(spec, className, image, classLoader);
+    }
+
+    /**
+     * Transforms many class files in parallel, such as all the classes of a jar file,
+     * so that they are ready before they are needed.
+     *
+     * <p>
+     * All the classes are transformed with the same rules, even if {@link #loadRules(Collection)} is called
+     * in the mean time, and they share the type hierarchies read while computing stack map frames.
+     *
+     * @param executor
+     *      Runs the transformation of each class, such as a {@link ForkJoinPool}.
+     * @return
+     *      Transformed byte code of each class, in the same order as {@code images}.
+     *      Classes that didn't need transformation are returned as is.
+     */
+    public List<byte[]> transformAll(Iterable<ClassImage> images, Executor executor) {
+        final TransformationSpec spec = this.spec;
+        List<CompletableFuture<byte[]>> tasks = new ArrayList<CompletableFuture<byte[]>>();
+        for (final ClassImage i : images) {
+            tasks.add(CompletableFuture.supplyAsync(
+                    () -> transform(spec, i.getClassName(), i.getImage(), i.getClassLoader()), executor));
+        }
+
+        List<byte[]> r = new ArrayList<byte[]>(tasks.size());
+        for (CompletableFuture<byte[]> t : tasks)
+            r.add(join(t));
+        return r;
+    }
+
+    /**
+     * Waits for a task, and throws what it threw.
+     */
+    private static <T> T join(CompletableFuture<T> task) {
+        try {
+            return task.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)  throw (RuntimeException)cause;
+            if (cause instanceof Error)             throw (Error)cause;
+            throw e;
+        }
+    }
+
+    /**
+     * Transforms many class files in parallel in the {@linkplain ForkJoinPool#commonPool() common pool}.
+     *
+     * @see #transformAll(Iterable, Executor)
+     */
+    public List<byte[]> transformAll(Iterable<ClassImage> images) {
+        return transformAll(images, ForkJoinPool.commonPool());
+    }
+
+    private byte[] transform(TransformationSpec spec, String className, byte[] image, ClassLoader classLoader) {
         LoggingHelper.asyncLog(LOGGER, Level.FINEST, "transform({0}, {1})", className, classLoader);
-        if (!spec.mayNeedTransformation(image)) {
+        metrics.classesInspected.increment();
+        if (isExcluded(spec, className, classLoader)) {
+            metrics.classesExcluded.increment();
+            return image;
+        }
+        long start = System.nanoTime();
+        boolean mayNeedTransformation = spec.mayNeedTransformation(image);
+        metrics.scanTime.record(System.nanoTime()-start);
+        if (!mayNeedTransformation) {
             LoggingHelper.asyncLog(LOGGER, Level.FINEST, "no transformation required for {0}", className);
             return image;
         }
+        metrics.classesPassedFilter.increment();
+
+        TransformedClassCache cache = this.cache;
+        if (cache==null) {
+            return rewrite(spec, className, image, classLoader, null);
+        }
+
+        byte[] key = TransformedClassCache.keyOf(image);
+        String segment = transformationFingerprint(spec);
+        // the outcome depends on the type hierarchy that the class loader sees, so check it still looks the same
+        ClassLoadingReferenceTypeHierachyReader hierarchy = classLoader==null ? null
+                : new ClassLoadingReferenceTypeHierachyReader(classLoader, hierarchyCache);
+        byte[] cached = cache.get(segment, key, hierarchy);
+        if (cached==TransformedClassCache.UNMODIFIED) {
+            metrics.cacheHits.increment();
+            LoggingHelper.asyncLog(LOGGER, Level.FINER, "class {0} was not modified according to the cache.", className);
+            return image;
+        }
+        if (cached!=null) {
+            metrics.cacheHits.increment();
+            metrics.classesRewritten.increment();
+            LoggingHelper.asyncLog(LOGGER, Level.FINER, "class {0} was modified according to the cache.", className);
+            return cached;
+        }
+
+        HierarchyAnswers answers = new HierarchyAnswers();
+        byte[] rewritten = rewrite(spec, className, image, classLoader, answers);
+        cache.put(segment, key, rewritten==image ? TransformedClassCache.UNMODIFIED : rewritten, answers.toByteArray());
+        return rewritten;
+    }
+
+    /**
+     * Identifies everything that determines the byte code we generate, besides the class itself
+     * and the type hierarchy visible to its class loader.
+     */
+    private String transformationFingerprint(TransformationSpec spec) {
+        String s = spec.fingerprint+"-"+IMPLEMENTATION;
+        if (checkOwnerHierarchy || resolveTypeChecks)   s += "-owners";
+        if (resolveTypeChecks)      s += "-resolved";
+        if (sharedTypeCheck)        s += "-shared";
+        if (invokeDynamic)          s += "-indy";
+        return s;
+    }
+
+    /**
+     * Hashes the jar files that the given classes are loaded from.
+     *
+     * <p>
+     * When a class doesn't come from a jar file, as is the case when running from an IDE, its implementation version
+     * and its own class file are hashed instead. If none of this can be read, we return a value that is different
+     * in every JVM, which only costs us the reuse of earlier outcomes.
+     */
+    private static String implementationDigest(Class<?>... classes) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update((byte)ASM9);
+            for (Class<?> c : classes) {
+                CodeSource cs = c.getProtectionDomain().getCodeSource();
+                File f = cs==null || cs.getLocation()==null || !"file".equals(cs.getLocation().getProtocol()) ? null
+                        : new File(cs.getLocation().toURI());
+                if (f!=null && f.isFile()) {
+                    md.update(Files.readAllBytes(f.toPath()));
+                } else {
+                    Package p = c.getPackage();
+                    md.update(String.valueOf(p==null ? null : p.getImplementationVersion()).getBytes(StandardCharsets.UTF_8));
+                    try (InputStream in = c.getResourceAsStream(c.getSimpleName()+".class")) {
+                        if (in==null)   throw new IOException("No class file for "+c);
+                        md.update(IOUtils.toByteArray(in));
+                    }
+                }
+            }
+            byte[] d = md.digest();
+            StringBuilder buf = new StringBuilder();
+            for (int i=0; i<8; i++)
+                buf.append(Character.forDigit((d[i]>>4)&0xF, 16)).append(Character.forDigit(d[i]&0xF, 16));
+            return buf.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);    // every JRE is required to support SHA-256
+        } catch (IOException | URISyntaxException | SecurityException e) {
+            LOGGER.log(Level.WARNING, "Failed to identify the version of the transformer. Not reusing earlier outcomes", e);
+            return UUID.randomUUID().toString();
+        }
+    }
+
+    private boolean isExcluded(TransformationSpec spec, String className, ClassLoader classLoader) {
+        ClassNameFilter f = classNameFilter;
+        if (f!=null && !f.accepts(className))
+            return true;
+        f = classLoaderFilter;
+        if (f!=null && classLoader!=null && !f.accepts(classLoader.getClass().getName()))
+            return true;
+        return skipLoadersWithoutRules && classLoader!=null && !spec.isVisibleFrom(classLoader);
+    }
+
+    /**
+     * Rewrites a class file that {@linkplain TransformationSpec#mayNeedTransformation(byte[]) may need transformation}.
+     *
+     * @param answers
+     *      Where to record what the type hierarchy says, or null.
+     * @return
+     *      {@code image} itself if it turns out that no rewrite was necessary.
+     */
+    private byte[] rewrite(TransformationSpec spec, String className, byte[] image, ClassLoader classLoader, HierarchyAnswers answers) {
+        long start = System.nanoTime();
+        byte[] rewritten = doRewrite(spec, className, image, classLoader, answers);
+        metrics.rewriteTime.record(System.nanoTime()-start);
+        if (rewritten!=image)
+            metrics.classesRewritten.increment();
+        return rewritten;
+    }
+
+    private byte[] doRewrite(final TransformationSpec spec, final String className, byte[] image, ClassLoader classLoader, HierarchyAnswers answers) {
         /* 
          * StackFrames are only supported in bytecode 50 (JDK 6) and higher
          * so there is no need to recompute them for versions less than this.
          */
         final boolean regenerateStackMapTable = getBytecodeVersion(image) >= 50;
 
+        final Map<String,Boolean> methodsToRewrite;
+        try {
+            methodsToRewrite = spec.methodsToRewrite(image);
+        } catch (IOException e) {
+            LoggingHelper.asyncLog(LOGGER, Level.WARNING, e, "Failed to parse {0}", className);
+            return image;
+        }
+        if (methodsToRewrite.isEmpty()) {
+            LoggingHelper.asyncLog(LOGGER, Level.FINER, "class {0} was not modified.", className);
+            return image;
+        }
+
         final ClassReader cr = new ClassReader(image);
-        final NonClassLoadingClassWriter cw = new NonClassLoadingClassWriter(classLoader, regenerateStackMapTable ? ClassWriter.COMPUTE_FRAMES|ClassWriter.COMPUTE_MAXS : ClassWriter.COMPUTE_MAXS);
+
+        /*
+         * The writer starts from the constant pool of the original class, and the methods that don't refer
+         * to any of the rewritten members are copied as is by ClassReader. Those methods are neither decoded
+         * nor re-encoded, and their stack map frames stay valid as the constant pool indices don't change.
+         * This also saves us from the data flow analysis and the type hierarchy lookup needed to compute frames,
+         * which are only done for the methods we actually rewrite.
+         */
+        final NonClassLoadingClassWriter cw = new NonClassLoadingClassWriter(cr, classLoader, hierarchyCache, metrics, answers,
+                regenerateStackMapTable ? ClassWriter.COMPUTE_FRAMES|ClassWriter.COMPUTE_MAXS : ClassWriter.COMPUTE_MAXS);
 
         final boolean[] modified = new boolean[1];
+        final boolean sharedTypeCheck = this.sharedTypeCheck;
+        final boolean invokeDynamic = this.invokeDynamic && getBytecodeVersion(image) >= V1_7;
+        final boolean resolveTypeChecks = this.resolveTypeChecks;
+        final ClassLoadingReferenceTypeHierachyReader hierarchy = (checkOwnerHierarchy || resolveTypeChecks) && classLoader!=null
+                ? new ClassLoadingReferenceTypeHierachyReader(classLoader, hierarchyCache) : null;
 
-        // If code contains JSR/RET instructions then ASM fails to transform it with
-        // java.lang.RuntimeException: JSR/RET are not supported with computeFrames option
-        // so inline any JSR subroutines
-        ClassVisitor jsrInliner = new ClassVisitor(ASM9,cw) {
-            
-            @Override
-            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
-                final MethodVisitor base = super.visitMethod(access, name, desc, signature, exceptions);
-                LoggingHelper.asyncLog(LOGGER, Level.FINEST, "jsrInliner.visitMethod({0}, {1}, {2}, {3}, {4})", access, name, desc, signature, exceptions);
-                return new JSRInlinerAdapter(ASM9, base, access, name, desc, signature, exceptions) {
-
-                   @Override
-                    public void visitEnd() {
-                       LoggingHelper.asyncLog(LOGGER, Level.FINEST, "visit end for {0}", name);
-                       super.visitEnd();
-                    } 
-                };
-            }
-        };
-        
-        cr.accept(new ClassVisitor(ASM9, regenerateStackMapTable ? jsrInliner : cw) {
+        cr.accept(new ClassVisitor(ASM9, cw) {
             private ClassRewritingContext context;
 
             @Override
             public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
                 // we need to set the version to at least 49 - otherwise we introduce opcodes (ldc) that are not available and things break.
                 super.visit(Math.max(version,49), access, name, signature, superName, interfaces);
-                this.context = new ClassRewritingContext(name);
+                this.context = new ClassRewritingContext(name, hierarchy, answers, sharedTypeCheck, invokeDynamic, resolveTypeChecks);
             }
 
             @Override
             public MethodVisitor visitMethod(int access, final String methodName, final String methodDescriptor, final String methodSignature, String[] exceptions) {
-                final MethodVisitor base = super.visitMethod(access, methodName, methodDescriptor, methodSignature, exceptions);
+                MethodVisitor mv = super.visitMethod(access, methodName, methodDescriptor, methodSignature, exceptions);
+                Boolean hasSubroutines = methodsToRewrite.get(methodName+methodDescriptor);
+                if (hasSubroutines==null) {
+                    // returning the MethodWriter itself lets ClassReader copy the method
+                    return mv;
+                }
+
+                mv = new MethodVisitor(ASM9, mv) {
+                    @Override
+                    public void visitMaxs(int maxStack, int maxLocals) {
+                        // this is where MethodWriter computes frames
+                        long start = System.nanoTime();
+                        super.visitMaxs(maxStack, maxLocals);
+                        metrics.frameTime.record(System.nanoTime()-start);
+                    }
+                };
+
+                if (regenerateStackMapTable && hasSubroutines) {
+                    // If code contains JSR/RET instructions then ASM fails to transform it with
+                    // java.lang.RuntimeException: JSR/RET are not supported with computeFrames option
+                    // so inline any JSR subroutines
+                    mv = new JSRInlinerAdapter(mv, access, methodName, methodDescriptor, methodSignature, exceptions);
+                }
+                final MethodVisitor base = mv;
 
                 return new MethodVisitor(ASM9,base) {
                     @Override
                     public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
                         boolean _modified = spec.methods.rewrite(context,opcode,owner,name,desc, itf, base);
                         modified[0] |= _modified;
-                        LoggingHelper.asyncLog(LOGGER, Level.FINEST, "{0}.{1}({2}) {3} modified",
+                        if (_modified)
+                            metrics.instructionsRewritten.increment();
+                        // only report the instructions that had a rule for them
+                        if (LOGGER.isLoggable(Level.FINEST) && spec.methods.containsKey(name,desc))
+                            LoggingHelper.asyncLog(LOGGER, Level.FINEST, "{0}.{1}({2}) {3} modified",
                                    className, methodName, methodSignature == null ? "" : methodSignature,
                                                  _modified ? "was" : "was not" );
                     }
@@ -142,7 +673,11 @@ public class Transformer {
                     public void visitFieldInsn(int opcode, String owner, String name, String desc) {
                         boolean _modified = spec.fields.rewrite(context,opcode,owner,name,desc, false, base);
                         modified[0] |= _modified;
-                        LoggingHelper.asyncLog(LOGGER, Level.FINEST, "{0}.{1}({2}) {3} modified",
+                        if (_modified)
+                            metrics.instructionsRewritten.increment();
+                        // only report the instructions that had a rule for them
+                        if (LOGGER.isLoggable(Level.FINEST) && spec.fields.containsKey(name,desc))
+                            LoggingHelper.asyncLog(LOGGER, Level.FINEST, "{0}.{1}({2}) {3} modified",
                                    className, methodName, methodSignature == null ? "" : methodSignature,
                                                  _modified ? "was" : "was not" );
                     }
@@ -153,6 +688,8 @@ public class Transformer {
             public void visitEnd() {
                 LoggingHelper.asyncLog(LOGGER, Level.FINEST, "visitEnd(1) for {0}", className);
                 context.generateCheckerMethods(cw);
+                metrics.unrelatedReferences.add(context.unrelatedReferences);
+                metrics.resolvedReferences.add(context.resolvedReferences);
                 super.visitEnd();
                 LoggingHelper.asyncLog(LOGGER, Level.FINEST, "visitEnd(2) for {0}", className);
             }
@@ -174,7 +711,8 @@ public class Transformer {
      */
     private int getBytecodeVersion(byte[] classData) {
         int version = (( classData[6] & 0xFF ) << 8 ) | (classData[7] & 0xFF);
-        LoggingHelper.asyncLog(LOGGER, Level.FINEST, "bytecode version is {0}", version);
+        if (LOGGER.isLoggable(Level.FINEST))
+            LoggingHelper.asyncLog(LOGGER, Level.FINEST, "bytecode version is {0}", version);
         return version;
     }
 }
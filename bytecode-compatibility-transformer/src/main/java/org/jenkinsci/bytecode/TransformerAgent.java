@@ -0,0 +1,106 @@
+package org.jenkinsci.bytecode;
+
+import java.io.IOException;
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Java agent that loads the rules from the system class loader, and applies them to all the classes of the JVM.
+ *
+ * <pre>
+ * java -javaagent:bytecode-compatibility-transformer.jar="include=org.acme.,com.example.;exclude=org.acme.shaded." ...
+ * </pre>
+ *
+ * <p>
+ * The options are separated by ';', and their values by ',':
+ *
+ * <dl>
+ * <dt>include
+ * <dd>Prefixes of the names of the classes to transform. By default, all the classes are.
+ * <dt>exclude
+ * <dd>Prefixes of the names of the classes not to transform, in place of {@link ClassFileTransformerAdapter#DEFAULT_EXCLUDES}.
+ * <dt>excludeLoader
+ * <dd>Prefixes of the class names of the class loaders whose classes are not transformed.
+ * <dt>skipLoadersWithoutRules
+ * <dd>If true, see {@link Transformer#setSkipLoadersWithoutRules(boolean)}.
+ * </dl>
+ *
+ * <p>
+ * The libraries this jar depends on, ASM among them, need to be on the classpath.
+ * More rules can be loaded later on through {@link #getTransformer()}.
+ */
+public class TransformerAgent {
+    private static volatile ClassFileTransformerAdapter adapter;
+
+    public static void premain(String args, Instrumentation inst) throws IOException {
+        install(args, inst);
+    }
+
+    /**
+     * When the agent is attached to a running JVM, the classes that are already loaded are not transformed.
+     */
+    public static void agentmain(String args, Instrumentation inst) throws IOException {
+        install(args, inst);
+    }
+
+    private static synchronized void install(String args, Instrumentation inst) throws IOException {
+        if (adapter!=null) {
+            LOGGER.warning("The agent is already installed");
+            return;
+        }
+
+        Transformer t = new Transformer();
+        t.loadRules(ClassLoader.getSystemClassLoader());
+        ClassFileTransformerAdapter a = new ClassFileTransformerAdapter(t);
+        if (args!=null) {
+            for (String option : args.split(";")) {
+                int idx = option.indexOf('=');
+                if (idx<0) {
+                    if (option.trim().length()>0)
+                        throw new IllegalArgumentException("Expected name=value, but got "+option);
+                    continue;
+                }
+                String name = option.substring(0, idx).trim();
+                List<String> values = split(option.substring(idx+1));
+                if (name.equals("include"))
+                    a.setIncludes(values);
+                else if (name.equals("exclude"))
+                    a.setExcludes(values);
+                else if (name.equals("excludeLoader"))
+                    a.setExcludedLoaders(values);
+                else if (name.equals("skipLoadersWithoutRules"))
+                    t.setSkipLoadersWithoutRules(Boolean.parseBoolean(option.substring(idx+1).trim()));
+                else
+                    throw new IllegalArgumentException("Unknown option "+name);
+            }
+        }
+
+        inst.addTransformer(a, false);
+        adapter = a;
+        LOGGER.log(Level.FINE, "Installed with the rules {0}", t.getRulesFingerprint());
+    }
+
+    private static List<String> split(String values) {
+        List<String> r = new ArrayList<String>();
+        for (String v : Arrays.asList(values.split(","))) {
+            v = v.trim();
+            if (v.length()>0)
+                r.add(v);
+        }
+        return r;
+    }
+
+    /**
+     * Returns the transformer that the agent applies, or null if the agent isn't installed.
+     */
+    public static Transformer getTransformer() {
+        ClassFileTransformerAdapter a = adapter;
+        return a==null ? null : a.getTransformer();
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(TransformerAgent.class.getName());
+}
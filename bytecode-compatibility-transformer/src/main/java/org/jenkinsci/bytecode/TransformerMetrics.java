@@ -0,0 +1,281 @@
+package org.jenkinsci.bytecode;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * What a {@link Transformer} has been doing, and how long it took.
+ *
+ * <p>
+ * Classes are transformed concurrently from many class loading threads, so everything here is recorded
+ * into striped counters that don't contend. Reading them while transformations are in progress gives
+ * a consistent enough, but not atomic, picture.
+ *
+ * <p>
+ * To look at these numbers from JMX, register this object to an MBean server:
+ *
+ * <pre>
+ * ManagementFactory.getPlatformMBeanServer().registerMBean(transformer.getMetrics(),
+ *         new ObjectName("org.jenkinsci.bytecode:type=Transformer"));
+ * </pre>
+ *
+ * @see Transformer#getMetrics()
+ */
+public final class TransformerMetrics implements TransformerMetricsMBean {
+    final LongAdder classesInspected = new LongAdder();
+    final LongAdder classesExcluded = new LongAdder();
+    final LongAdder classesPassedFilter = new LongAdder();
+    final LongAdder classesRewritten = new LongAdder();
+    final LongAdder cacheHits = new LongAdder();
+    final LongAdder unrelatedReferences = new LongAdder();
+    final LongAdder resolvedReferences = new LongAdder();
+    final LongAdder instructionsRewritten = new LongAdder();
+
+    /**
+     * Time spent checking the constant pool of every class.
+     */
+    final Histogram scanTime = new Histogram();
+
+    /**
+     * Time spent rewriting the classes that passed the constant pool check, including {@link #frameTime}.
+     */
+    final Histogram rewriteTime = new Histogram();
+
+    /**
+     * Time spent computing the stack map frames and the max stack/locals of each rewritten method,
+     * including {@link #commonSuperClassTime}.
+     */
+    final Histogram frameTime = new Histogram();
+
+    /**
+     * Time spent looking up the type hierarchy for computing stack map frames.
+     */
+    final Histogram commonSuperClassTime = new Histogram();
+
+    /**
+     * The rules of the transformer, which count their own hits.
+     */
+    private final Supplier<List<RuleStatistics>> rules;
+
+    /**
+     * {@link #countByRule()} as of the last {@link #reset()}, as the rules keep counting across it.
+     */
+    private volatile Map<String,Long> baseline = Collections.emptyMap();
+
+    TransformerMetrics(Supplier<List<RuleStatistics>> rules) {
+        this.rules = rules;
+    }
+
+    public long getClassesInspected() {
+        return classesInspected.sum();
+    }
+
+    public long getClassesExcluded() {
+        return classesExcluded.sum();
+    }
+
+    public long getClassesPassedFilter() {
+        return classesPassedFilter.sum();
+    }
+
+    public long getClassesRewritten() {
+        return classesRewritten.sum();
+    }
+
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    public long getInstructionsRewritten() {
+        return instructionsRewritten.sum();
+    }
+
+    /**
+     * Returns the number of instructions rewritten for each rule, as {@linkplain RuleStatistics#getHits() counted}
+     * by the rules themselves.
+     *
+     * <p>
+     * Rules for the same member declared by different classes are added up. An instruction that is rewritten
+     * with a type check for each of them counts once for each, so the total can exceed {@link #getInstructionsRewritten()}.
+     *
+     * @return
+     *      Keys are like "FIELD name Ldescriptor;" sorted alphabetically. Rules that never matched are not included.
+     */
+    public Map<String,Long> getInstructionsRewrittenByRule() {
+        Map<String,Long> base = baseline;
+        Map<String,Long> r = countByRule();
+        r.replaceAll((k,n) -> n-base.getOrDefault(k,0L));
+        r.values().removeIf(n -> n==0);
+        return r;
+    }
+
+    private Map<String,Long> countByRule() {
+        Map<String,Long> r = new TreeMap<String,Long>();
+        for (RuleStatistics s : rules.get()) {
+            if (s.getHits()>0)
+                r.merge(s.getKind()+" "+s.getName()+" "+s.getDescriptor(), s.getHits(), Long::sum);
+        }
+        return r;
+    }
+
+    /**
+     * Number of references to a member with a rule that were left alone,
+     * because the hierarchy of their owner can't lead to the class that declares the rule.
+     *
+     * @see Transformer#setCheckOwnerHierarchy(boolean)
+     */
+    public long getUnrelatedReferences() {
+        return unrelatedReferences.sum();
+    }
+
+    /**
+     * Number of references to a member with a rule that were rewritten without a type check,
+     * because the hierarchy of their owner tells which rule applies.
+     *
+     * @see Transformer#setResolveTypeChecks(boolean)
+     */
+    public long getResolvedReferences() {
+        return resolvedReferences.sum();
+    }
+
+    public long getCommonSuperClassLookups() {
+        return commonSuperClassTime.getCount();
+    }
+
+    public Histogram getScanTime() {
+        return scanTime;
+    }
+
+    public Histogram getRewriteTime() {
+        return rewriteTime;
+    }
+
+    public Histogram getFrameComputationTime() {
+        return frameTime;
+    }
+
+    public Histogram getCommonSuperClassTime() {
+        return commonSuperClassTime;
+    }
+
+    public long getScanNanos() {
+        return scanTime.getTotal();
+    }
+
+    public long getRewriteNanos() {
+        return rewriteTime.getTotal();
+    }
+
+    public long getFrameComputationNanos() {
+        return frameTime.getTotal();
+    }
+
+    public long getCommonSuperClassNanos() {
+        return commonSuperClassTime.getTotal();
+    }
+
+    public void reset() {
+        classesInspected.reset();
+        classesExcluded.reset();
+        classesPassedFilter.reset();
+        classesRewritten.reset();
+        cacheHits.reset();
+        unrelatedReferences.reset();
+        resolvedReferences.reset();
+        scanTime.reset();
+        rewriteTime.reset();
+        frameTime.reset();
+        commonSuperClassTime.reset();
+        instructionsRewritten.reset();
+        baseline = countByRule();
+    }
+
+    /**
+     * Distribution of durations in nanoseconds.
+     *
+     * <p>
+     * Values are counted in buckets of powers of two, so the percentiles are accurate within a factor of 2,
+     * which is plenty to tell a slow class from a normal one, and costs nothing to record.
+     */
+    public static final class Histogram {
+        /**
+         * {@code buckets[i]} counts the values in [2<sup>i</sup>, 2<sup>i+1</sup>), except that 0 goes to {@code buckets[0]}.
+         */
+        private final LongAdder[] buckets = new LongAdder[64];
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        Histogram() {
+            for (int i=0; i<buckets.length; i++)
+                buckets[i] = new LongAdder();
+        }
+
+        void record(long nanos) {
+            if (nanos<0)    nanos = 0;  // nanoTime isn't monotonic on every platform
+            buckets[63-Long.numberOfLeadingZeros(nanos|1)].increment();
+            total.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        public long getCount() {
+            long n = 0;
+            for (LongAdder b : buckets)
+                n += b.sum();
+            return n;
+        }
+
+        /**
+         * Sum of all the recorded values.
+         */
+        public long getTotal() {
+            return total.sum();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * Returns a value that at least the given fraction of the recorded values are below.
+         *
+         * @param fraction
+         *      Between 0 and 1, such as 0.99 for the 99th percentile.
+         * @return
+         *      The upper bound of the bucket the percentile falls in, or 0 if nothing is recorded.
+         */
+        public long getPercentile(double fraction) {
+            long[] counts = new long[buckets.length];
+            long n = 0;
+            for (int i=0; i<counts.length; i++)
+                n += counts[i] = buckets[i].sum();
+            if (n==0)   return 0;
+
+            long threshold = (long)Math.ceil(n*fraction);
+            long seen = 0;
+            for (int i=0; i<counts.length; i++) {
+                seen += counts[i];
+                if (seen>=threshold && counts[i]>0)
+                    return Math.min(i==63 ? Long.MAX_VALUE : (1L<<(i+1))-1, getMax());
+            }
+            return getMax();
+        }
+
+        void reset() {
+            for (LongAdder b : buckets)
+                b.reset();
+            total.reset();
+            max.reset();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d total=%dms p50=%dus p99=%dus max=%dus",
+                    getCount(), getTotal()/1000000, getPercentile(0.5)/1000, getPercentile(0.99)/1000, getMax()/1000);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package org.jenkinsci.bytecode;
+
+/**
+ * JMX view of {@link TransformerMetrics}.
+ *
+ * <p>
+ * Times are totals in nanoseconds. The distributions are only available from the Java API.
+ */
+public interface TransformerMetricsMBean {
+    /**
+     * Number of classes passed to {@link Transformer#transform(String, byte[], ClassLoader)}.
+     */
+    long getClassesInspected();
+
+    /**
+     * Number of classes skipped because of their names or class loaders, without looking at their constant pool.
+     *
+     * @see Transformer#setClassNameFilter(ClassNameFilter)
+     */
+    long getClassesExcluded();
+
+    /**
+     * Number of classes whose constant pool refers to a member that has a rule.
+     */
+    long getClassesPassedFilter();
+
+    /**
+     * Number of classes that were actually modified.
+     */
+    long getClassesRewritten();
+
+    /**
+     * Number of classes whose outcome came from {@link TransformedClassCache}.
+     */
+    long getCacheHits();
+
+    long getInstructionsRewritten();
+
+    /**
+     * Number of references to a member with a rule that were left alone, because their owner is unrelated to the rule.
+     */
+    long getUnrelatedReferences();
+
+    /**
+     * Number of references to a member with a rule that were rewritten without a type check, because their owner
+     * is known to be related to the rule.
+     */
+    long getResolvedReferences();
+
+    long getCommonSuperClassLookups();
+
+    long getScanNanos();
+
+    long getRewriteNanos();
+
+    long getFrameComputationNanos();
+
+    long getCommonSuperClassNanos();
+
+    void reset();
+}
@@ -0,0 +1,67 @@
+package org.jenkinsci.bytecode;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Runtime support for the classes rewritten with {@link Transformer#setSharedTypeCheck(boolean)}.
+ *
+ * <p>
+ * Instead of a private checker method generated into every rewritten class, the rewritten instructions call
+ * {@link #isAssignableFrom(Class, String)}, so that the check exists once and the JIT can profile and inline it.
+ *
+ * <p>
+ * This requires this class to be visible from all the class loaders whose classes are rewritten, as is the case
+ * when it comes with the module system that applies the transformation. The same goes for {@link AdapterBootstrap}.
+ */
+public final class TypeCheckSupport {
+    private TypeCheckSupport() {}
+
+    /**
+     * Binary names of all the superclasses and interfaces of a class, including itself.
+     */
+    private static final ClassValue<Set<String>> SUPERTYPES = new ClassValue<Set<String>>() {
+        @Override
+        protected Set<String> computeValue(Class<?> type) {
+            Set<String> r = new HashSet<String>();
+            collect(type, r);
+            return r;
+        }
+
+        private void collect(Class<?> t, Set<String> r) {
+            for (; t!=null; t=t.getSuperclass()) {
+                if (!r.add(t.getName()))
+                    return;
+                for (Class<?> i : t.getInterfaces())
+                    collect(i, r);
+            }
+        }
+    };
+
+    /**
+     * Checks if the class of the given name is the given type, or one of its supertypes.
+     *
+     * <p>
+     * The class is checked by name, without being resolved, so unlike
+     * {@code Class.forName(suspected).isAssignableFrom(actual)} this never fails when the suspected type
+     * is not accessible from the caller. The supertypes of each class are only computed once.
+     *
+     * <p>
+     * This makes it differ from the checker methods generated into each rewritten class in two ways.
+     * A supertype that has the name of the suspected type but was defined by another class loader matches here,
+     * while the checker methods compare with the class that the rewritten class resolves, and don't match it.
+     * And where the suspected type is not accessible from the rewritten class, the checker methods catch
+     * {@link IllegalAccessError} and leave the instruction as it was, while here the rule is applied,
+     * and the code it generates fails the same way if it refers to that type.
+     * So this relies on the classes that declare rules being the only classes of their names
+     * that the rewritten classes see, and being accessible to them.
+     *
+     * @param actual
+     *      Owner of the field or the method being accessed.
+     * @param suspected
+     *      Binary name of the class that declares the rule.
+     */
+    public static boolean isAssignableFrom(Class<?> actual, String suspected) {
+        return SUPERTYPES.get(actual).contains(suspected);
+    }
+}
@@ -0,0 +1,277 @@
+package org.jenkinsci.bytecode;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Copies a zip file while replacing the contents of some of its entries.
+ *
+ * <p>
+ * The entries that are not replaced are copied as they are in the original file, still compressed,
+ * with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}. Only the replaced
+ * entries get deflated. As most of a jar doesn't need transformation, this makes copying it mostly a matter of I/O.
+ *
+ * <p>
+ * Zip64 archives, which are only needed for more than 65535 entries or 4GB, aren't supported.
+ * {@link #rewrite(File, File, Map)} returns false for them, so that the caller can fall back to
+ * {@link java.util.zip.ZipOutputStream}.
+ */
+final class ZipRewriter {
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int ZIP64_LOCATOR = 0x07064b50;
+    private static final int DATA_DESCRIPTOR = 0x08074b50;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_SIZE = 22;
+
+    /**
+     * General purpose flag telling that the sizes and the CRC follow the data.
+     */
+    private static final int FLAG_DATA_DESCRIPTOR = 8;
+
+    private static final int DEFLATED = 8;
+
+    private ZipRewriter() {}
+
+    /**
+     * One record of the central directory, with where its entry is found in the original file.
+     */
+    private static final class Entry {
+        /**
+         * The central directory record as is, including the name, the extra field and the comment.
+         * Updated in place to point to the copy.
+         */
+        final ByteBuffer record;
+        final String name;
+        final int flags;
+        final long compressedSize;
+        final long localOffset;
+
+        Entry(ByteBuffer record) {
+            this.record = record;
+            // java.util.zip reads names as UTF-8 whether or not the flag says so
+            this.name = new String(record.array(), CENTRAL_HEADER_SIZE, record.getShort(28)&0xFFFF, StandardCharsets.UTF_8);
+            this.flags = record.getShort(8)&0xFFFF;
+            this.compressedSize = record.getInt(20)&0xFFFFFFFFL;
+            this.localOffset = record.getInt(42)&0xFFFFFFFFL;
+        }
+
+        boolean isZip64() {
+            return (record.getInt(20)==-1 || record.getInt(24)==-1 || record.getInt(42)==-1);
+        }
+    }
+
+    /**
+     * Writes a copy of {@code in} to {@code out}, with the contents of the entries named in {@code replacements}
+     * replaced. The order of the entries doesn't change, and no entry is added or removed.
+     *
+     * @return
+     *      false if the layout of the zip file isn't supported, in which case {@code out} may be left
+     *      partially written.
+     */
+    static boolean rewrite(File in, File out, Map<String,byte[]> replacements) throws IOException {
+        try (FileChannel src = FileChannel.open(in.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer end = findEnd(src);
+            if (end==null)  return false;
+
+            int count = end.getShort(10)&0xFFFF;
+            long cdSize = end.getInt(12)&0xFFFFFFFFL;
+            long cdOffset = end.getInt(16)&0xFFFFFFFFL;
+            if (end.getShort(4)!=0 || end.getShort(6)!=0 || count!=(end.getShort(8)&0xFFFF))
+                return false;   // split archive
+            if (count==0xFFFF || cdSize==0xFFFFFFFFL || cdOffset==0xFFFFFFFFL)
+                return false;   // zip64
+
+            List<Entry> entries = readCentralDirectory(src, cdOffset, cdSize, count);
+            if (entries==null)  return false;
+
+            try (FileChannel dst = FileChannel.open(out.toPath(),
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (Entry e : entries) {
+                    long offset = dst.position();
+                    if (offset>0xFFFFFFFFL)     return false;
+                    byte[] data = replacements.get(e.name);
+                    if (data!=null) {
+                        writeDeflated(e, data, dst);
+                    } else {
+                        long length = localEntryLength(src, e);
+                        if (length<0)   return false;
+                        transfer(src, e.localOffset, length, dst);
+                    }
+                    e.record.putInt(42, (int)offset);
+                }
+
+                long newCdOffset = dst.position();
+                for (Entry e : entries)
+                    writeFully(dst, e.record);
+                long newCdSize = dst.position()-newCdOffset;
+                if (dst.position()>0xFFFFFFFFL)    return false;
+
+                end.putInt(12, (int)newCdSize);
+                end.putInt(16, (int)newCdOffset);
+                writeFully(dst, end);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Finds the end of central directory record, which is followed by a comment of up to 64KB.
+     *
+     * @return
+     *      The record and the comment, or null if not found.
+     */
+    private static ByteBuffer findEnd(FileChannel src) throws IOException {
+        long size = src.size();
+        if (size<END_SIZE)  return null;
+        int len = (int)Math.min(size, END_SIZE+0xFFFF);
+        ByteBuffer tail = read(src, size-len, len);
+        for (int i=len-END_SIZE; i>=0; i--) {
+            if (tail.getInt(i)==END_OF_CENTRAL_DIRECTORY && i+END_SIZE+(tail.getShort(i+20)&0xFFFF)==len) {
+                if (i>=20 && tail.getInt(i-20)==ZIP64_LOCATOR)
+                    return null;
+                return wrap(Arrays.copyOfRange(tail.array(), i, len));
+            }
+        }
+        return null;
+    }
+
+    private static List<Entry> readCentralDirectory(FileChannel src, long offset, long size, int count) throws IOException {
+        if (offset+size>src.size())     return null;
+        ByteBuffer cd = read(src, offset, (int)size);
+        List<Entry> entries = new ArrayList<Entry>(count);
+        int p = 0;
+        for (int i=0; i<count; i++) {
+            if (p+CENTRAL_HEADER_SIZE>size || cd.getInt(p)!=CENTRAL_HEADER)
+                return null;
+            int len = CENTRAL_HEADER_SIZE + (cd.getShort(p+28)&0xFFFF) + (cd.getShort(p+30)&0xFFFF) + (cd.getShort(p+32)&0xFFFF);
+            if (p+len>size)     return null;
+
+            Entry e = new Entry(wrap(Arrays.copyOfRange(cd.array(), p, p+len)));
+            if (e.isZip64())    return null;
+            entries.add(e);
+            p += len;
+        }
+        return entries;
+    }
+
+    /**
+     * Computes the length of the local header, the data, and the data descriptor of the given entry.
+     *
+     * @return
+     *      -1 if the local header is corrupted.
+     */
+    private static long localEntryLength(FileChannel src, Entry e) throws IOException {
+        if (e.localOffset+LOCAL_HEADER_SIZE>src.size())     return -1;
+        ByteBuffer h = read(src, e.localOffset, LOCAL_HEADER_SIZE);
+        if (h.getInt(0)!=LOCAL_HEADER)  return -1;
+
+        long length = LOCAL_HEADER_SIZE + (h.getShort(26)&0xFFFF) + (h.getShort(28)&0xFFFF) + e.compressedSize;
+        if ((e.flags&FLAG_DATA_DESCRIPTOR)!=0) {
+            // the signature of the data descriptor is optional
+            if (e.localOffset+length+4>src.size())  return -1;
+            length += read(src, e.localOffset+length, 4).getInt(0)==DATA_DESCRIPTOR ? 16 : 12;
+        }
+        if (e.localOffset+length>src.size())    return -1;
+        return length;
+    }
+
+    /**
+     * Writes a deflated entry with the given contents, and updates the central directory record accordingly.
+     */
+    private static void writeDeflated(Entry e, byte[] data, FileChannel dst) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        byte[] compressed;
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] buf = new byte[Math.max(64, data.length+data.length/1000+64)];
+            int n = 0;
+            while (!deflater.finished()) {
+                if (n==buf.length)  buf = Arrays.copyOf(buf, buf.length*2);
+                n += deflater.deflate(buf, n, buf.length-n);
+            }
+            compressed = Arrays.copyOf(buf, n);
+        } finally {
+            deflater.end();
+        }
+
+        ByteBuffer r = e.record;
+        int flags = e.flags&~FLAG_DATA_DESCRIPTOR;
+        r.putShort(6, (short)Math.max(20, r.getShort(6)&0xFFFF));  // version needed to extract
+        r.putShort(8, (short)flags);
+        r.putShort(10, (short)DEFLATED);
+        r.putInt(16, (int)crc.getValue());
+        r.putInt(20, compressed.length);
+        r.putInt(24, data.length);
+
+        int nameLength = r.getShort(28)&0xFFFF;
+        ByteBuffer h = wrap(new byte[LOCAL_HEADER_SIZE+nameLength]);
+        h.putInt(LOCAL_HEADER);
+        h.putShort(r.getShort(6));
+        h.putShort((short)flags);
+        h.putShort((short)DEFLATED);
+        h.putInt(r.getInt(12));     // time and date
+        h.putInt((int)crc.getValue());
+        h.putInt(compressed.length);
+        h.putInt(data.length);
+        h.putShort((short)nameLength);
+        h.putShort((short)0);       // extra field
+        for (int i=0; i<nameLength; i++)
+            h.put(r.get(CENTRAL_HEADER_SIZE+i));
+        writeFully(dst, h);
+        writeFully(dst, ByteBuffer.wrap(compressed));
+    }
+
+    private static void transfer(FileChannel src, long position, long count, FileChannel dst) throws IOException {
+        while (count>0) {
+            long n = src.transferTo(position, count, dst);
+            if (n<=0)   throw new IOException("Unexpected end of file");
+            position += n;
+            count -= n;
+        }
+    }
+
+    private static ByteBuffer read(FileChannel src, long position, int length) throws IOException {
+        byte[] data = new byte[length];
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining()) {
+            if (src.read(buf, position+buf.position())<0)
+                throw new IOException("Unexpected end of file");
+        }
+        return wrap(data);
+    }
+
+    /**
+     * Wraps a byte array to be read and written with absolute positions in the byte order of zip files.
+     */
+    private static ByteBuffer wrap(byte[] data) {
+        return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Writes the whole backing array of the given buffer, regardless of its position.
+     */
+    private static void writeFully(FileChannel dst, ByteBuffer buf) throws IOException {
+        ByteBuffer b = ByteBuffer.wrap(buf.array());
+        while (b.hasRemaining())
+            dst.write(b);
+    }
+}
@@ -33,20 +33,50 @@ import org.objectweb.asm.Type;
 
 /**
  * A {@link TypeHierarchyReader} that uses a given ClassLoader to locate class definitions.
- * Like its super class this class does not load the class nor does it provide any caching - 
- * but it uses the specified ClassLoader in order to find the byte-code.
+ * Like its super class this class does not load the class - but it uses the specified ClassLoader
+ * in order to find the byte-code.
+ * Parsed hierarchies are remembered in a {@link TypeHierarchyCache} if one is given.
  */
 public class ClassLoadingReferenceTypeHierachyReader extends TypeHierarchyReader {
 
     /** The ClassLoader used to locate the byte-code to parse. */
     private ClassLoader classLoader;
+
+    /** Hierarchies already parsed for {@link #classLoader}, or null if we are not caching. */
+    private final TypeHierarchyCache.Segment cache;
     
     /**
      * 
      * @param classLoader the {@link ClassLoader} used to locate the byte-code to parse.
      */
     public ClassLoadingReferenceTypeHierachyReader(final ClassLoader classLoader) {
+        this(classLoader, null);
+    }
+
+    /**
+     * @param classLoader the {@link ClassLoader} used to locate the byte-code to parse.
+     * @param cache the cache to consult before parsing any byte-code, or null to always parse.
+     */
+    public ClassLoadingReferenceTypeHierachyReader(final ClassLoader classLoader, final TypeHierarchyCache cache) {
         this.classLoader = classLoader;
+        this.cache = cache == null ? null : cache.forLoader(classLoader);
+    }
+
+    /**
+     * Consults the cache before falling back to parsing the byte-code of class types.
+     */
+    @Override
+    public TypeHierarchy hierarchyOf(Type t) {
+        if (cache == null || t.getSort() != Type.OBJECT) {
+            return super.hierarchyOf(t);
+        }
+        String name = t.getInternalName();
+        TypeHierarchy h = cache.get(name);
+        if (h == null) {
+            h = super.hierarchyOf(t);
+            cache.put(name, h);
+        }
+        return h;
     }
 
     /**
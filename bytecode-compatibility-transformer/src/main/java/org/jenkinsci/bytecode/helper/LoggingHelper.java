@@ -1,5 +1,12 @@
 package org.jenkinsci.bytecode.helper;
 
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
@@ -9,11 +16,73 @@ import java.util.logging.Logger;
  * We need this intermediate as logging can cause classloading and also involves locks, and the transformer is only ever
  * invoked during class loading - so we should not really use logging as we could end up in a deadlock (however there
  * are times where we really want to use it)
+ *
+ * <p>
+ * Records are handed over to a single daemon thread through a bounded queue, so that turning on a fine log level
+ * doesn't create a thread per record. When the queue is full, records are dropped according to
+ * {@link #setOverflowPolicy(OverflowPolicy)} and counted in {@link #getDroppedCount()}.
  */
 public final class LoggingHelper {
 
-    /** 
-     * Logs to JUL if the records log level is loggable for the given logger. 
+    /**
+     * What to do with a record when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Discard the record being logged.
+         */
+        DROP_NEWEST,
+        /**
+         * Discard the oldest record that's still waiting in the queue to make room.
+         */
+        DROP_OLDEST
+    }
+
+    private static final Queue<Entry> QUEUE = new ConcurrentLinkedQueue<Entry>();
+
+    /**
+     * Number of records in {@link #QUEUE}, which doesn't have a constant time size().
+     */
+    private static final AtomicInteger SIZE = new AtomicInteger();
+
+    private static final AtomicLong DROPPED = new AtomicLong();
+
+    private static volatile int capacity = 8192;
+
+    private static volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+
+    /**
+     * Sets the maximum number of records that can be waiting to be logged.
+     */
+    public static void setCapacity(int capacity) {
+        if (capacity<0)
+            throw new IllegalArgumentException("Negative capacity: "+capacity);
+        LoggingHelper.capacity = capacity;
+    }
+
+    public static int getCapacity() {
+        return capacity;
+    }
+
+    public static void setOverflowPolicy(OverflowPolicy policy) {
+        if (policy==null)
+            throw new IllegalArgumentException();
+        overflowPolicy = policy;
+    }
+
+    public static OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Returns the number of records that were discarded because the queue was full.
+     */
+    public static long getDroppedCount() {
+        return DROPPED.get();
+    }
+
+    /**
+     * Logs to JUL if the records log level is loggable for the given logger.
      * @param log the Logger to use.
      * @param record the record to log
      */
@@ -23,8 +92,8 @@ public final class LoggingHelper {
         }
     }
 
-    /** 
-     * Logs to JUL if the log level is loggable for the given logger, based on the given message and parameters 
+    /**
+     * Logs to JUL if the log level is loggable for the given logger, based on the given message and parameters
      * @param log the Logger to use.
      * @param level the level of the log entry
      * @param message the message (with format placeholders) for the log entry
@@ -38,8 +107,69 @@ public final class LoggingHelper {
         }
     }
 
-    /** 
-     * Logs to JUL if the log level is loggable for the given logger, based on the given message and parameters 
+    /*
+     * Fixed arity versions of the above, so that the callers don't allocate the parameter array
+     * for every call even when the level is not loggable.
+     */
+
+    /**
+     * Logs to JUL if the log level is loggable for the given logger.
+     * @see #asyncLog(Logger, Level, String, Object...)
+     */
+    public static void asyncLog(final Logger log, final Level level, final String message) {
+        if (log.isLoggable(level)) {
+            populateStackAndLogAsync(log, new LogRecord(level, message));
+        }
+    }
+
+    /**
+     * Logs to JUL if the log level is loggable for the given logger.
+     * @see #asyncLog(Logger, Level, String, Object...)
+     */
+    public static void asyncLog(final Logger log, final Level level, final String message, final Object p0) {
+        if (log.isLoggable(level)) {
+            log(log, level, message, new Object[] {p0});
+        }
+    }
+
+    /**
+     * Logs to JUL if the log level is loggable for the given logger.
+     * @see #asyncLog(Logger, Level, String, Object...)
+     */
+    public static void asyncLog(final Logger log, final Level level, final String message, final Object p0, final Object p1) {
+        if (log.isLoggable(level)) {
+            log(log, level, message, new Object[] {p0, p1});
+        }
+    }
+
+    /**
+     * Logs to JUL if the log level is loggable for the given logger.
+     * @see #asyncLog(Logger, Level, String, Object...)
+     */
+    public static void asyncLog(final Logger log, final Level level, final String message, final Object p0, final Object p1, final Object p2) {
+        if (log.isLoggable(level)) {
+            log(log, level, message, new Object[] {p0, p1, p2});
+        }
+    }
+
+    /**
+     * Logs to JUL if the log level is loggable for the given logger.
+     * @see #asyncLog(Logger, Level, String, Object...)
+     */
+    public static void asyncLog(final Logger log, final Level level, final String message, final Object p0, final Object p1, final Object p2, final Object p3) {
+        if (log.isLoggable(level)) {
+            log(log, level, message, new Object[] {p0, p1, p2, p3});
+        }
+    }
+
+    private static void log(final Logger log, final Level level, final String message, final Object[] parameters) {
+        LogRecord record = new LogRecord(level, message);
+        record.setParameters(parameters);
+        populateStackAndLogAsync(log, record);
+    }
+
+    /**
+     * Logs to JUL if the log level is loggable for the given logger, based on the given message and parameters
      * @param log the Logger to use.
      * @param level the level of the log entry
      * @param throwable the throwable to associate with the log entry
@@ -56,17 +186,100 @@ public final class LoggingHelper {
     }
 
     private static void populateStackAndLogAsync(final Logger log, final LogRecord record) {
-        // call to make sure the stack is populated.
-        StackTraceElement[] stack = Thread.currentThread().getStackTrace();
-        if (stack.length > 3) {
-            // [0] is Thread.getStackTrace
-            // [1] is this method
-            // [2] is the caller (still this class)
-            // [3] is the actual consumer we want
-            StackTraceElement caller = stack[3];
-            record.setSourceClassName(caller.getClassName());
-            record.setSourceMethodName(caller.getMethodName());
+        if (SIZE.incrementAndGet()>capacity) {
+            if (overflowPolicy==OverflowPolicy.DROP_OLDEST && QUEUE.poll()!=null) {
+                SIZE.decrementAndGet();     // made room by removing the oldest one
+            } else {
+                SIZE.decrementAndGet();
+                DROPPED.incrementAndGet();
+                return;
+            }
+            DROPPED.incrementAndGet();
         }
-        new Thread(() -> log.log(record), "bytecode-compatibility-transformer async logging").start();
+        // Throwable only records the frames here. They are turned into StackTraceElements
+        // on the dispatcher thread, right before the record is published.
+        QUEUE.offer(new Entry(log, record, new Throwable()));
+        Dispatcher.INSTANCE.wakeUp();
+    }
+
+    /**
+     * A record waiting to be logged.
+     */
+    private static final class Entry {
+        final Logger log;
+        final LogRecord record;
+        final Throwable caller;
+
+        Entry(Logger log, LogRecord record, Throwable caller) {
+            this.log = log;
+            this.record = record;
+            this.caller = caller;
+        }
+
+        void publish() {
+            for (StackTraceElement e : caller.getStackTrace()) {
+                if (!e.getClassName().equals(LoggingHelper.class.getName())) {
+                    // the first frame outside this class is the actual consumer we want
+                    record.setSourceClassName(e.getClassName());
+                    record.setSourceMethodName(e.getMethodName());
+                    break;
+                }
+            }
+            log.log(record);
+        }
+    }
+
+    /**
+     * The thread that logs the queued records. Started when the first record is logged.
+     *
+     * <p>
+     * That happens in whatever thread is loading a class at that point, so the thread is created in a privileged
+     * context and without a context class loader, to not hold on to the access control context or
+     * the class loader of that thread for the rest of the life of the JVM.
+     */
+    private static final class Dispatcher extends Thread {
+        /**
+         * Set while this thread is about to park, so that producers only need to unpark it then.
+         */
+        private volatile boolean waiting;
+
+        private Dispatcher() {
+            super("bytecode-compatibility-transformer async logging");
+            setDaemon(true);
+            setContextClassLoader(null);
+        }
+
+        void wakeUp() {
+            if (waiting)
+                LockSupport.unpark(this);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Entry e = QUEUE.poll();
+                if (e==null) {
+                    waiting = true;
+                    if (QUEUE.isEmpty())
+                        LockSupport.park(this);
+                    waiting = false;
+                    continue;
+                }
+                SIZE.decrementAndGet();
+                try {
+                    e.publish();
+                } catch (Throwable x) {
+                    // a misbehaving handler shouldn't stop the logging of other records
+                }
+            }
+        }
+
+        static final Dispatcher INSTANCE = AccessController.doPrivileged(new PrivilegedAction<Dispatcher>() {
+            public Dispatcher run() {
+                Dispatcher d = new Dispatcher();
+                d.start();
+                return d;
+            }
+        });
     }
 }
@@ -0,0 +1,107 @@
+package org.jenkinsci.bytecode.helper;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jenkinsci.bytecode.helper.TypeHierarchyReader.TypeHierarchy;
+
+/**
+ * Size-bounded cache of {@link TypeHierarchy} keyed by the {@link ClassLoader} used to locate
+ * the class file and the internal name of the type.
+ *
+ * <p>
+ * Class loaders are only weakly referenced, so a plugin class loader that gets discarded takes
+ * its cached hierarchies with it. A single instance is meant to be shared by everyone who
+ * computes common super classes on behalf of the same transformer.
+ *
+ * <p>
+ * This class is concurrency safe.
+ */
+public final class TypeHierarchyCache {
+
+    /** Default upper bound of the number of hierarchies that are remembered per class loader. */
+    public static final int DEFAULT_MAX_ENTRIES_PER_LOADER = 4096;
+
+    private final int maxEntriesPerLoader;
+
+    private final Map<ClassLoader, ConcurrentMap<String, TypeHierarchy>> loaders =
+            Collections.synchronizedMap(new WeakHashMap<ClassLoader, ConcurrentMap<String, TypeHierarchy>>());
+
+    public TypeHierarchyCache() {
+        this(DEFAULT_MAX_ENTRIES_PER_LOADER);
+    }
+
+    /**
+     * @param maxEntriesPerLoader the maximum number of hierarchies remembered for any single class loader.
+     */
+    public TypeHierarchyCache(int maxEntriesPerLoader) {
+        if (maxEntriesPerLoader <= 0) {
+            throw new IllegalArgumentException("maxEntriesPerLoader must be positive: " + maxEntriesPerLoader);
+        }
+        this.maxEntriesPerLoader = maxEntriesPerLoader;
+    }
+
+    /**
+     * Returns the portion of the cache that belongs to the given class loader.
+     * Callers should hold on to the result for the duration of their work
+     * rather than calling this for every lookup.
+     */
+    Segment forLoader(ClassLoader classLoader) {
+        ConcurrentMap<String, TypeHierarchy> m = loaders.get(classLoader);
+        if (m == null) {
+            synchronized (loaders) {
+                m = loaders.get(classLoader);
+                if (m == null) {
+                    loaders.put(classLoader, m = new ConcurrentHashMap<String, TypeHierarchy>());
+                }
+            }
+        }
+        return new Segment(m);
+    }
+
+    /**
+     * Forgets everything cached for the given class loader.
+     */
+    public void invalidate(ClassLoader classLoader) {
+        loaders.remove(classLoader);
+    }
+
+    /**
+     * Forgets everything.
+     */
+    public void clear() {
+        loaders.clear();
+    }
+
+    /**
+     * Hierarchies cached for a single class loader, keyed by internal name.
+     */
+    final class Segment {
+        private final ConcurrentMap<String, TypeHierarchy> entries;
+
+        private Segment(ConcurrentMap<String, TypeHierarchy> entries) {
+            this.entries = entries;
+        }
+
+        TypeHierarchy get(String internalName) {
+            return entries.get(internalName);
+        }
+
+        void put(String internalName, TypeHierarchy hierarchy) {
+            if (entries.size() >= maxEntriesPerLoader) {
+                // make room by evicting an arbitrary entry. hierarchies are cheap to recompute,
+                // so there's no point in tracking the access order.
+                Iterator<String> itr = entries.keySet().iterator();
+                if (itr.hasNext()) {
+                    itr.next();
+                    itr.remove();
+                }
+            }
+            entries.put(internalName, hierarchy);
+        }
+    }
+}
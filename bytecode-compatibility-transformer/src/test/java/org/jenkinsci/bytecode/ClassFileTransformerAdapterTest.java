@@ -0,0 +1,58 @@
+package org.jenkinsci.bytecode;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.objectweb.asm.Opcodes.V1_8;
+
+public class ClassFileTransformerAdapterTest {
+    private final ClassLoader cl = getClass().getClassLoader();
+
+    @Test
+    public void testFilter() throws Exception {
+        Transformer t = new Transformer();
+        t.loadRules(cl);
+        ClassFileTransformerAdapter a = new ClassFileTransformerAdapter(t);
+        assertTrue(accepts(a, cl, "org/acme/Foo"));
+        assertFalse("JDK", accepts(a, cl, "java/util/List"));
+        assertFalse("bootstrap", accepts(a, null, "org/acme/Foo"));
+
+        a.setIncludes(Arrays.asList("org.acme.", "com.example."));
+        a.setExcludes(Collections.singletonList("org.acme.shaded."));
+        assertTrue(accepts(a, cl, "org/acme/Foo"));
+        assertTrue(accepts(a, cl, "com/example/Bar"));
+        assertFalse(accepts(a, cl, "org/acme/shaded/Foo"));
+        assertFalse(accepts(a, cl, "org/other/Foo"));
+
+        a.setExcludedLoaders(Collections.singletonList(cl.getClass().getName()));
+        assertFalse(accepts(a, cl, "org/acme/Foo"));
+        assertEquals("filtered by the transformer", 4, t.getMetrics().getClassesExcluded());
+    }
+
+    /**
+     * Checks if a class that needs a rewrite gets rewritten when it has the given name.
+     */
+    private static boolean accepts(ClassFileTransformerAdapter a, ClassLoader loader, String className) {
+        return a.transform(loader, className, null, null, TransformerTest.generateClient(V1_8))!=null;
+    }
+
+    @Test
+    public void testTransform() throws Exception {
+        Transformer t = new Transformer();
+        t.loadRules(cl);
+        ClassFileTransformerAdapter a = new ClassFileTransformerAdapter(t);
+
+        byte[] client = TransformerTest.generateClient(V1_8);
+        assertNotNull(a.transform(cl, "Client", null, null, client));
+        assertNull("redefinition", a.transform(cl, "Client", Object.class, null, client));
+        assertNull("nothing to rewrite", a.transform(cl, "Unrelated", null, null, ConstantPoolReaderTest.imageOf(getClass())));
+        assertNull("not a class file", a.transform(cl, "Broken", null, null, new byte[] {1, 2, 3}));
+    }
+}
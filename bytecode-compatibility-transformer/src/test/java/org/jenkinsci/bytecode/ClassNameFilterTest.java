@@ -0,0 +1,31 @@
+package org.jenkinsci.bytecode;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClassNameFilterTest {
+    @Test
+    public void testLongestPrefixWins() {
+        ClassNameFilter f = ClassNameFilter.of(Arrays.asList("org.acme.", "org.acme.shaded.api."), Arrays.asList("org.acme.shaded."));
+        assertTrue(f.accepts("org.acme.Foo"));
+        assertTrue(f.accepts("org/acme/Foo"));
+        assertFalse(f.accepts("org.acme.shaded.Foo"));
+        assertTrue(f.accepts("org.acme.shaded.api.Foo"));
+        assertFalse("not included", f.accepts("org.acmeish.Foo"));
+        assertFalse("not included", f.accepts("org"));
+    }
+
+    @Test
+    public void testExcludeOnly() {
+        assertFalse(ClassNameFilter.JDK.accepts("java.lang.String"));
+        assertFalse(ClassNameFilter.JDK.accepts("com/sun/Foo"));
+        assertTrue(ClassNameFilter.JDK.accepts("javafx.Foo"));
+        assertTrue(ClassNameFilter.JDK.accepts("hudson.model.Hudson"));
+        assertTrue(ClassNameFilter.exclude(Collections.<String>emptyList()).accepts("java.lang.String"));
+    }
+}
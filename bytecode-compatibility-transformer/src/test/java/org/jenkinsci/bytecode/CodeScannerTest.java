@@ -0,0 +1,108 @@
+package org.jenkinsci.bytecode;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+
+import static org.jenkinsci.bytecode.ConstantPoolReaderTest.imageOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.objectweb.asm.Opcodes.*;
+
+public class CodeScannerTest {
+    private final MemberRefFilter out = MemberRefFilter.of(Collections.singleton(new NameAndType("Ljava/io/PrintStream;", "out")));
+    private final MemberRefFilter println = MemberRefFilter.of(Collections.singleton(new NameAndType("(Ljava/lang/String;)V", "println")));
+
+    @Test
+    public void testFindsMethodsAcrossVariableLengthInstructions() throws IOException {
+        Map<String, Boolean> r = scan(imageOf(Switches.class), out, MemberRefFilter.EMPTY);
+        assertEquals(2, r.size());
+        assertEquals(false, r.get("afterTableSwitch(I)V"));
+        assertEquals(false, r.get("afterLookupSwitch(I)V"));
+
+        r = scan(imageOf(Switches.class), MemberRefFilter.EMPTY, println);
+        assertEquals(Collections.singleton("afterTableSwitch(I)V"), r.keySet());
+    }
+
+    @Test
+    public void testSubroutines() throws IOException {
+        Map<String, Boolean> r = scan(generateWithSubroutine(), out, MemberRefFilter.EMPTY);
+        assertEquals(1, r.size());
+        assertEquals(true, r.get("run()V"));
+        assertTrue(scan(generateWithSubroutine(), MemberRefFilter.EMPTY, MemberRefFilter.EMPTY).isEmpty());
+    }
+
+    @Test
+    public void testTruncatedCode() throws IOException {
+        byte[] image = imageOf(Switches.class);
+        int end = new ConstantPoolReader(image).end;
+        byte[] truncated = new byte[end + (image.length - end) / 2];
+        System.arraycopy(image, 0, truncated, 0, truncated.length);
+        try {
+            scan(truncated, out, println);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static Map<String, Boolean> scan(byte[] image, MemberRefFilter fields, MemberRefFilter methods) throws IOException {
+        return CodeScanner.scan(new ConstantPoolReader(image), fields, methods);
+    }
+
+    /**
+     * Generates a pre-Java 6 class whose only method calls a subroutine, after a {@code wide iinc}.
+     */
+    private static byte[] generateWithSubroutine() {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_4, ACC_PUBLIC, "WithSubroutine", null, "java/lang/Object", null);
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "run", "()V", null, null);
+        mv.visitCode();
+        Label sub = new Label();
+        mv.visitInsn(ICONST_0);
+        mv.visitVarInsn(ISTORE, 0);
+        mv.visitIincInsn(0, 1000);
+        mv.visitJumpInsn(JSR, sub);
+        mv.visitInsn(RETURN);
+        mv.visitLabel(sub);
+        mv.visitVarInsn(ASTORE, 1);
+        mv.visitFieldInsn(GETSTATIC, "java/lang/System", "out", "Ljava/io/PrintStream;");
+        mv.visitInsn(POP);
+        mv.visitVarInsn(RET, 1);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    static class Switches {
+        void afterTableSwitch(int i) {
+            switch (i) {
+            case 1: i = 10; break;
+            case 2: i = 20; break;
+            case 3: i = 30; break;
+            }
+            System.out.println("" + i);
+        }
+
+        void afterLookupSwitch(int i) {
+            switch (i) {
+            case 1: i = 10; break;
+            case 1000: i = 20; break;
+            case 100000: i = 30; break;
+            }
+            PrintStream o = System.out;
+        }
+
+        void unrelated(int i) {
+            i++;
+        }
+    }
+}
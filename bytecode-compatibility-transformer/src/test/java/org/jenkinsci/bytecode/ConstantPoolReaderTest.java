@@ -0,0 +1,95 @@
+package org.jenkinsci.bytecode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Type;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConstantPoolReaderTest {
+
+    @Test
+    public void testWalksTheSameConstantPoolAsASM() throws IOException {
+        byte[] image = imageOf(WithWideConstants.class);
+        ConstantPoolReader p = new ConstantPoolReader(image);
+        ClassReader cr = new ClassReader(image);
+
+        assertEquals(cr.getItemCount(), p.size());
+        for (int i = 1; i < p.size(); i++) {
+            int offset = cr.getItem(i);
+            assertEquals("tag at " + i, offset == 0 ? 0 : image[offset - 1], p.tag(i));
+        }
+        assertEquals(cr.header, p.end);
+    }
+
+    @Test
+    public void testMemberReferences() throws IOException {
+        ConstantPoolReader p = new ConstantPoolReader(imageOf(PrintsSomething.class));
+        boolean found = false;
+        for (int i = 1; i < p.size(); i++) {
+            if (p.tag(i) == ConstantPoolReader.FIELD_REF && p.memberName(i).equals("out")) {
+                assertThat(p.ownerName(i), is("java/lang/System"));
+                found = true;
+            }
+        }
+        assertTrue(found);
+    }
+
+    @Test
+    public void testMayNeedTransformation() throws IOException {
+        TransformationSpec spec = new TransformationSpec();
+        spec.fields.addRewriteSpec("out", PrintStream.class, new MemberAdapter(Type.getType(System.class)) {});
+        assertFalse("rules aren't effective until compiled", spec.mayNeedTransformation(imageOf(PrintsSomething.class)));
+
+        spec.compile();
+        assertTrue(spec.mayNeedTransformation(imageOf(PrintsSomething.class)));
+        assertFalse(spec.mayNeedTransformation(imageOf(WithWideConstants.class)));
+    }
+
+    @Test
+    public void testMalformedImages() {
+        byte[] image = imageOf(PrintsSomething.class);
+        for (int len : new int[] {0, 9, 10, 20, image.length / 2}) {
+            byte[] truncated = new byte[len];
+            System.arraycopy(image, 0, truncated, 0, len);
+            try {
+                new ConstantPoolReader(truncated);
+                fail("expected to fail on " + len + " bytes");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+        assertFalse(new TransformationSpec().mayNeedTransformation(new byte[] {1, 2, 3}));
+    }
+
+    static byte[] imageOf(Class<?> c) {
+        try (InputStream in = c.getClassLoader().getResourceAsStream(c.getName().replace('.', '/') + ".class")) {
+            return IOUtils.toByteArray(in);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    static class WithWideConstants {
+        long l = 1234567890123L;
+        double d = 3.14159d;
+        float f = 2.5f;
+        String s = "s\u00e9\u65e5";
+    }
+
+    static class PrintsSomething {
+        void print() {
+            System.out.println("something");
+        }
+    }
+}
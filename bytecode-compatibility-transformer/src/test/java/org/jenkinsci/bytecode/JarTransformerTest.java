@@ -0,0 +1,135 @@
+package org.jenkinsci.bytecode;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.objectweb.asm.Opcodes.V1_8;
+
+public class JarTransformerTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testTransformJar() throws Exception {
+        testTransformJar(null);
+    }
+
+    @Test
+    public void testTransformJarWithManifest() throws Exception {
+        Manifest m = new Manifest();
+        m.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        m.getMainAttributes().putValue("Plugin-Version", "1.0");
+        File out = testTransformJar(m);
+        try (JarFile jar = new JarFile(out)) {
+            assertEquals("1.0", jar.getManifest().getMainAttributes().getValue("Plugin-Version"));
+        }
+    }
+
+    private File testTransformJar(Manifest manifest) throws Exception {
+        byte[] client = TransformerTest.generateClient(V1_8);
+        byte[] text = "hello".getBytes(StandardCharsets.UTF_8);
+
+        File in = tmp.newFile("in.jar");
+        try (JarOutputStream jos = manifest==null ? new JarOutputStream(new FileOutputStream(in)) : new JarOutputStream(new FileOutputStream(in), manifest)) {
+            jos.putNextEntry(new ZipEntry("Client.class"));
+            jos.write(client);
+            jos.putNextEntry(new ZipEntry("readme.txt"));
+            jos.write(text);
+        }
+
+        Transformer t = new Transformer();
+        t.loadRules(getClass().getClassLoader());
+        JarTransformer jt = new JarTransformer(t);
+
+        File out = tmp.newFile("out.jar");
+        assertTrue(jt.transform(in, out, getClass().getClassLoader()));
+        try (JarFile jar = new JarFile(out)) {
+            assertTrue(t.isTransformed(jar.getManifest()));
+            assertEquals(t.getRulesFingerprint()+"-"+Transformer.IMPLEMENTATION, jar.getManifest().getMainAttributes().getValue(JarTransformer.FINGERPRINT));
+            assertArrayEquals(t.transform("Client", client, getClass().getClassLoader()), read(jar, "Client.class"));
+            assertArrayEquals(text, read(jar, "readme.txt"));
+        }
+
+        // a transformed jar is left alone
+        File again = tmp.newFile("again.jar");
+        assertFalse(jt.transform(out, again, getClass().getClassLoader()));
+        assertArrayEquals(IOUtils.toByteArray(out.toURI()), IOUtils.toByteArray(again.toURI()));
+
+        // until the rules, the modes or the transformer change
+        Transformer empty = new Transformer();
+        try (JarFile jar = new JarFile(out)) {
+            assertFalse(empty.isTransformed(jar.getManifest()));
+            t.setInvokeDynamic(true);
+            assertFalse(t.isTransformed(jar.getManifest()));
+            t.setInvokeDynamic(false);
+
+            Manifest older = new Manifest(jar.getManifest());
+            older.getMainAttributes().put(JarTransformer.FINGERPRINT, t.getRulesFingerprint()+"-0123456789abcdef");
+            assertFalse(t.isTransformed(older));
+        }
+        return out;
+    }
+
+    @Test
+    public void testSignedJar() throws Exception {
+        Manifest m = new Manifest();
+        m.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        File in = tmp.newFile("signed.jar");
+        try (JarOutputStream jos = new JarOutputStream(new FileOutputStream(in), m)) {
+            jos.putNextEntry(new ZipEntry("META-INF/SIGNER.SF"));
+            jos.write("Signature-Version: 1.0\r\n".getBytes(StandardCharsets.UTF_8));
+            jos.putNextEntry(new ZipEntry("META-INF/SIGNER.RSA"));
+            jos.write(new byte[16]);
+            jos.putNextEntry(new ZipEntry("readme.txt"));
+            jos.write("hello".getBytes(StandardCharsets.UTF_8));
+        }
+
+        Transformer t = new Transformer();
+        t.loadRules(getClass().getClassLoader());
+        JarTransformer jt = new JarTransformer(t);
+
+        // the manifest is covered by the signature too, so nothing changes
+        File out = tmp.newFile("out.jar");
+        assertFalse(jt.transform(in, out, getClass().getClassLoader()));
+        assertArrayEquals(IOUtils.toByteArray(in.toURI()), IOUtils.toByteArray(out.toURI()));
+
+        File withClass = tmp.newFile("signed-client.jar");
+        try (JarOutputStream jos = new JarOutputStream(new FileOutputStream(withClass), m)) {
+            jos.putNextEntry(new ZipEntry("META-INF/SIGNER.SF"));
+            jos.putNextEntry(new ZipEntry("Client.class"));
+            jos.write(TransformerTest.generateClient(V1_8));
+        }
+        try {
+            jt.transform(withClass, tmp.newFile("out2.jar"), getClass().getClassLoader());
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static byte[] read(JarFile jar, String name) throws Exception {
+        JarEntry e = jar.getJarEntry(name);
+        try (InputStream in = jar.getInputStream(e)) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.jenkinsci.bytecode;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MemberRefFilterTest {
+
+    private final MemberRefFilter filter = MemberRefFilter.of(Arrays.asList(
+            new NameAndType("Ljava/util/List;", "x"),
+            new NameAndType("I", "x"),
+            new NameAndType("Ljava/lang/String;", "caf\u00e9"),
+            new NameAndType("[Z", "\u65e5\u672c")));
+
+    @Test
+    public void testStrings() {
+        assertTrue(filter.contains("x", "Ljava/util/List;"));
+        assertTrue(filter.contains("x", "I"));
+        assertTrue(filter.contains("caf\u00e9", "Ljava/lang/String;"));
+        assertTrue(filter.contains("\u65e5\u672c", "[Z"));
+
+        assertFalse(filter.contains("x", "J"));
+        assertFalse(filter.contains("y", "I"));
+        assertFalse(filter.contains("cafe", "Ljava/lang/String;"));
+        assertFalse(filter.contains("", "I"));
+    }
+
+    @Test
+    public void testBytes() {
+        byte[] buf = concat("\u0000junk", "caf\u00e9", "Ljava/lang/String;", "I");
+        int name = MemberRefFilter.encode("\u0000junk").length;
+        int nameLength = MemberRefFilter.encode("caf\u00e9").length;
+        int desc = name + nameLength;
+        int descLength = "Ljava/lang/String;".length();
+
+        assertTrue(filter.contains(buf, name, nameLength, desc, descLength));
+        assertFalse(filter.contains(buf, name, nameLength, desc + descLength, 1));
+        assertFalse(filter.contains(buf, name, nameLength - 1, desc, descLength));
+    }
+
+    @Test
+    public void testEmpty() {
+        MemberRefFilter empty = MemberRefFilter.of(Collections.<NameAndType>emptyList());
+        assertFalse(empty.contains("x", "I"));
+        assertFalse(MemberRefFilter.EMPTY.contains(new byte[] {'x', 'I'}, 0, 1, 1, 1));
+    }
+
+    @Test
+    public void testPlus() {
+        MemberRefFilter more = filter.plus(Arrays.asList(
+                new NameAndType("J", "x"),
+                new NameAndType("I", "y")));
+        assertTrue("added to an existing name", more.contains("x", "J"));
+        assertTrue(more.contains("x", "I"));
+        assertTrue(more.contains("y", "I"));
+        assertTrue(more.contains("caf\u00e9", "Ljava/lang/String;"));
+        assertFalse("the original is unchanged", filter.contains("x", "J"));
+        assertFalse(filter.contains("y", "I"));
+    }
+
+    private static byte[] concat(String... strings) {
+        byte[] r = new byte[0];
+        for (String s : strings) {
+            byte[] b = MemberRefFilter.encode(s);
+            byte[] n = Arrays.copyOf(r, r.length + b.length);
+            System.arraycopy(b, 0, n, r.length, b.length);
+            r = n;
+        }
+        return r;
+    }
+}
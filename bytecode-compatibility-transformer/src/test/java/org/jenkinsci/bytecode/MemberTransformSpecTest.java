@@ -0,0 +1,58 @@
+package org.jenkinsci.bytecode;
+
+import org.junit.Test;
+import org.objectweb.asm.Type;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MemberTransformSpecTest {
+    @Test
+    public void testLookup() {
+        MemberTransformSpec spec = new MemberTransformSpec(Kind.FIELD);
+        MemberAdapter[] adapters = new MemberAdapter[100];
+        for (int i=0; i<adapters.length; i++) {
+            adapters[i] = new MemberAdapter(Type.getObjectType("Owner"+i)) {};
+            spec.addRewriteSpec("f"+i, String.class, adapters[i]);
+        }
+        assertEquals(100, spec.size());
+        assertEquals(100, spec.keys().size());
+        for (int i=0; i<adapters.length; i++)
+            assertArrayEquals(new MemberAdapter[] {adapters[i]}, spec.get("f"+i, "Ljava/lang/String;"));
+        assertNull(spec.get("f0", "Ljava/lang/Object;"));
+        assertFalse(spec.containsKey("g", "Ljava/lang/String;"));
+
+        MemberAdapter other = new MemberAdapter(Type.getObjectType("Other")) {};
+        spec.addRewriteSpec("f0", String.class, other);
+        // in the order they were added
+        assertArrayEquals(new MemberAdapter[] {adapters[0], other}, spec.get("f0", "Ljava/lang/String;"));
+        spec.addRewriteSpec("f0", String.class, other);
+        assertEquals("the same rule loaded again", 2, spec.get("f0", "Ljava/lang/String;").length);
+    }
+
+    @Test
+    public void testCopy() {
+        MemberTransformSpec spec = new MemberTransformSpec(Kind.FIELD);
+        MemberAdapter a = new MemberAdapter(Type.getObjectType("A")) {};
+        spec.addRewriteSpec("f", String.class, a);
+        MemberAdapter[] before = spec.get("f", "Ljava/lang/String;");
+
+        MemberTransformSpec copy = new MemberTransformSpec(spec);
+        assertSame("shared until modified", before, copy.get("f", "Ljava/lang/String;"));
+        for (int i=0; i<20; i++)
+            copy.addRewriteSpec("g"+i, int.class, new MemberAdapter(Type.getObjectType("B")) {});
+        copy.addRewriteSpec("f", String.class, new MemberAdapter(Type.getObjectType("C")) {});
+
+        assertEquals(1, spec.size());
+        assertSame(before, spec.get("f", "Ljava/lang/String;"));
+        assertArrayEquals(new MemberAdapter[] {a}, before);
+        assertFalse(spec.containsKey("g0", "I"));
+        assertEquals(21, copy.size());
+        assertTrue(copy.containsKey("g19", "I"));
+        assertEquals(2, copy.get("f", "Ljava/lang/String;").length);
+    }
+}
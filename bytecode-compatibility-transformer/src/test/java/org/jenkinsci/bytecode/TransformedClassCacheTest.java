@@ -0,0 +1,202 @@
+package org.jenkinsci.bytecode;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.jenkinsci.bytecode.helper.ClassLoadingReferenceTypeHierachyReader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.objectweb.asm.Opcodes.V1_8;
+
+public class TransformedClassCacheTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final byte[] original = {(byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE, 1};
+    private final byte[] rewritten = {(byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE, 2, 3};
+    private final byte[] other = {(byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE, 4};
+
+    private static final byte[] NO_ANSWERS = new byte[0];
+
+    @Test
+    public void testOutcomesSurviveRestart() throws Exception {
+        File dir = tmp.newFolder();
+        TransformedClassCache cache = new TransformedClassCache(dir);
+        byte[] k1 = TransformedClassCache.keyOf(original), k2 = TransformedClassCache.keyOf(other);
+        assertNull(cache.get("rules", k1, null));
+
+        cache.put("rules", k1, rewritten, NO_ANSWERS);
+        cache.put("rules", k2, TransformedClassCache.UNMODIFIED, NO_ANSWERS);
+        assertArrayEquals(rewritten, cache.get("rules", k1, null));
+        assertSame(TransformedClassCache.UNMODIFIED, cache.get("rules", k2, null));
+        cache.close();
+
+        cache = new TransformedClassCache(dir);
+        assertArrayEquals(rewritten, cache.get("rules", k1, null));
+        assertSame(TransformedClassCache.UNMODIFIED, cache.get("rules", k2, null));
+        assertNull("different rules, different outcomes", cache.get("other rules", k1, null));
+        cache.close();
+    }
+
+    @Test
+    public void testIncompleteRecordIsDropped() throws Exception {
+        File dir = tmp.newFolder();
+        TransformedClassCache cache = new TransformedClassCache(dir);
+        byte[] k1 = TransformedClassCache.keyOf(original), k2 = TransformedClassCache.keyOf(other);
+        cache.put("rules", k1, rewritten, NO_ANSWERS);
+        cache.put("rules", k2, rewritten, NO_ANSWERS);
+        cache.close();
+
+        // simulate a crash in the middle of writing the second record
+        try (RandomAccessFile f = new RandomAccessFile(new File(dir, "rules.bct"), "rw")) {
+            f.setLength(f.length() - 1);
+        }
+
+        cache = new TransformedClassCache(dir);
+        assertArrayEquals(rewritten, cache.get("rules", k1, null));
+        assertNull(cache.get("rules", k2, null));
+
+        // and the file can be appended to again
+        cache.put("rules", k2, TransformedClassCache.UNMODIFIED, NO_ANSWERS);
+        cache.close();
+        cache = new TransformedClassCache(dir);
+        assertArrayEquals(rewritten, cache.get("rules", k1, null));
+        assertSame(TransformedClassCache.UNMODIFIED, cache.get("rules", k2, null));
+        cache.close();
+    }
+
+    @Test
+    public void testCorruptRecordIsDropped() throws Exception {
+        File dir = tmp.newFolder();
+        TransformedClassCache cache = new TransformedClassCache(dir);
+        byte[] k1 = TransformedClassCache.keyOf(original), k2 = TransformedClassCache.keyOf(other);
+        cache.put("rules", k1, rewritten, NO_ANSWERS);
+        cache.put("rules", k2, rewritten, NO_ANSWERS);
+
+        // the lengths of the second record made it to the disk, but its payload didn't
+        File f = new File(dir, "rules.bct");
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.seek(raf.length() - rewritten.length);
+            raf.write(new byte[rewritten.length]);
+        }
+        assertNull("checked on read", cache.get("rules", k2, null));
+        assertArrayEquals(rewritten, cache.get("rules", k1, null));
+        cache.close();
+
+        long length = f.length();
+        cache = new TransformedClassCache(dir);
+        assertNull("checked on load", cache.get("rules", k2, null));
+        assertArrayEquals(rewritten, cache.get("rules", k1, null));
+        assertEquals("truncated", length - 32 - 12 - rewritten.length, f.length());
+        cache.close();
+    }
+
+    @Test
+    public void testOutcomesDependOnHierarchy() throws Exception {
+        File dir = tmp.newFolder();
+        TransformedClassCache cache = new TransformedClassCache(dir);
+        byte[] k1 = TransformedClassCache.keyOf(original);
+        ClassLoadingReferenceTypeHierachyReader hierarchy = new ClassLoadingReferenceTypeHierachyReader(getClass().getClassLoader());
+
+        HierarchyAnswers now = new HierarchyAnswers();
+        now.commonSuperClass("java/lang/Integer", "java/lang/Long", "java/lang/Number");
+        HierarchyAnswers before = new HierarchyAnswers();
+        before.commonSuperClass("java/lang/Integer", "java/lang/Long", "java/lang/Object");
+
+        HierarchyAnswers resolved = new HierarchyAnswers();
+        resolved.assignable("java/lang/Number", "java/lang/Integer", true);
+        resolved.assignable("java/lang/Number", "no/such/Type", null);
+        HierarchyAnswers unrelated = new HierarchyAnswers();
+        unrelated.assignable("java/lang/Number", "java/lang/Integer", false);
+
+        cache.put("rules", k1, rewritten, before.toByteArray());
+        assertNull("computed against a different hierarchy", cache.get("rules", k1, hierarchy));
+        assertNull("no class loader to check against", cache.get("rules", k1, null));
+
+        cache.put("rules", k1, TransformedClassCache.UNMODIFIED, now.toByteArray());
+        assertSame(TransformedClassCache.UNMODIFIED, cache.get("rules", k1, hierarchy));
+
+        byte[] k2 = TransformedClassCache.keyOf(other);
+        cache.put("rules", k2, TransformedClassCache.UNMODIFIED, unrelated.toByteArray());
+        assertNull("type checks resolved against a different hierarchy", cache.get("rules", k2, hierarchy));
+        cache.put("rules", k2, rewritten, resolved.toByteArray());
+        assertArrayEquals(rewritten, cache.get("rules", k2, hierarchy));
+        cache.close();
+
+        cache = new TransformedClassCache(dir);
+        assertSame(TransformedClassCache.UNMODIFIED, cache.get("rules", k1, hierarchy));
+        cache.close();
+    }
+
+    @Test
+    public void testOutcomesOfOtherVersionsAreIgnored() throws Exception {
+        Transformer t = new Transformer();
+        t.loadRules(getClass().getClassLoader());
+        byte[] client = TransformerTest.generateClient(V1_8);
+        byte[] k = TransformedClassCache.keyOf(client);
+        String current = t.transformationFingerprint();
+
+        TransformedClassCache cache = new TransformedClassCache(tmp.newFolder());
+        t.setCache(cache);
+        cache.put(current, k, rewritten, NO_ANSWERS);
+        assertArrayEquals(rewritten, t.transform("Client", client, getClass().getClassLoader()));
+        cache.close();
+
+        // the same rules and modes, but an earlier version of the transformer or ASM
+        cache = new TransformedClassCache(tmp.newFolder());
+        t.setCache(cache);
+        cache.put(current.replace(Transformer.IMPLEMENTATION, "0123456789abcdef"), k, rewritten, NO_ANSWERS);
+        assertFalse(Arrays.equals(rewritten, t.transform("Client", client, getClass().getClassLoader())));
+        cache.close();
+    }
+
+    @Test
+    public void testUnusedSegmentsArePruned() throws Exception {
+        File dir = tmp.newFolder();
+        TransformedClassCache cache = new TransformedClassCache(dir);
+        byte[] k1 = TransformedClassCache.keyOf(original);
+        cache.put("old rules", k1, rewritten, NO_ANSWERS);
+        cache.put("rules", k1, rewritten, NO_ANSWERS);
+        cache.close();
+
+        long longAgo = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(60);
+        File old = new File(dir, "old rules.bct"), current = new File(dir, "rules.bct"), other = new File(dir, "other.txt");
+        assertTrue(other.createNewFile());
+        assertTrue(old.setLastModified(longAgo));
+        assertTrue(current.setLastModified(longAgo));
+        assertTrue(other.setLastModified(longAgo));
+
+        cache = new TransformedClassCache(dir, 60, TimeUnit.DAYS);
+        assertTrue("not idle for long enough yet", old.exists());
+        assertArrayEquals(rewritten, cache.get("rules", k1, null));
+        assertTrue("touched when opened", current.lastModified() > longAgo);
+        cache.close();
+
+        cache = new TransformedClassCache(dir);
+        assertFalse(old.exists());
+        assertTrue(other.exists());
+        assertArrayEquals(rewritten, cache.get("rules", k1, null));
+        cache.close();
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        File dir = tmp.newFolder();
+        TransformedClassCache cache = new TransformedClassCache(dir);
+        byte[] k1 = TransformedClassCache.keyOf(original);
+        cache.put("rules", k1, rewritten, NO_ANSWERS);
+        cache.clear();
+        assertNull(cache.get("rules", k1, null));
+        cache.close();
+    }
+}
@@ -0,0 +1,27 @@
+package org.jenkinsci.bytecode;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TransformerMetricsTest {
+
+    @Test
+    public void testHistogram() {
+        TransformerMetrics.Histogram h = new TransformerMetrics.Histogram();
+        assertEquals(0, h.getPercentile(0.5));
+
+        for (int i = 0; i < 99; i++) {
+            h.record(1000);
+        }
+        h.record(1000000);
+
+        assertEquals(100, h.getCount());
+        assertEquals(99 * 1000 + 1000000, h.getTotal());
+        assertEquals(1000000, h.getMax());
+        // 1000 falls in [512, 1024)
+        assertEquals(1023, h.getPercentile(0.5));
+        assertEquals(1023, h.getPercentile(0.99));
+        assertEquals(1000000, h.getPercentile(1));
+    }
+}
@@ -0,0 +1,471 @@
+package org.jenkinsci.bytecode;
+
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.jenkinsci.bytecode.ConstantPoolReaderTest.imageOf;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.objectweb.asm.Opcodes.*;
+
+public class TransformerTest {
+
+    @Test
+    public void testRulesFingerprintAndGeneration() throws Exception {
+        Transformer t1 = new Transformer();
+        Transformer t2 = new Transformer();
+        assertEquals(0, t1.getRulesGeneration());
+        assertThat(t1.getRulesFingerprint(), is(t2.getRulesFingerprint()));
+        String empty = t1.getRulesFingerprint();
+
+        // a class loader that has no rules
+        t1.loadRules(new URLClassLoader(new URL[0], null));
+        assertEquals(0, t1.getRulesGeneration());
+        assertThat(t1.getRulesFingerprint(), is(empty));
+
+        t1.loadRules(getClass().getClassLoader());
+        assertEquals(1, t1.getRulesGeneration());
+        assertThat(t1.getRulesFingerprint(), not(is(empty)));
+
+        // loading the same rules again is not a change
+        t1.loadRules(getClass().getClassLoader());
+        assertEquals(1, t1.getRulesGeneration());
+
+        t2.loadRules(getClass().getClassLoader());
+        assertThat(t2.getRulesFingerprint(), is(t1.getRulesFingerprint()));
+    }
+
+    @Test
+    public void testUntouchedMethodsAreCopied() throws Exception {
+        Transformer t = new Transformer();
+        t.loadRules(getClass().getClassLoader());
+
+        byte[] image = generateClient(V1_8);
+        // the frames of "untouched" can't be recomputed since the classes it uses don't exist
+        byte[] rewritten = t.transform("Client", image, getClass().getClassLoader());
+        assertThat(rewritten, not(is(image)));
+
+        Class<?> c = defineClient(rewritten);
+        Rules.current = "value";
+        assertEquals("value", c.getMethod("touched").invoke(null));
+    }
+
+    @Test
+    public void testConstantPoolIsPreserved() throws Exception {
+        Transformer t = new Transformer();
+        t.loadRules(getClass().getClassLoader());
+
+        for (int version : new int[] {V1_4, V1_8}) {
+            ConstantPoolReader before = new ConstantPoolReader(generateClient(version));
+            ConstantPoolReader after = new ConstantPoolReader(t.transform("Client", before.image, getClass().getClassLoader()));
+            assertThat(after.image, not(is(before.image)));
+            for (int i = 1; i < before.size(); i++) {
+                assertEquals("tag at " + i, before.tag(i), after.tag(i));
+                if (before.tag(i) == ConstantPoolReader.UTF8) {
+                    assertEquals(before.utf8(i), after.utf8(i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        Transformer t = new Transformer();
+        t.loadRules(getClass().getClassLoader());
+
+        t.transform(getClass().getName(), imageOf(getClass()), getClass().getClassLoader());
+        t.transform("Client", generateClient(V1_8), getClass().getClassLoader());
+
+        TransformerMetrics m = t.getMetrics();
+        assertEquals(2, m.getClassesInspected());
+        assertEquals(1, m.getClassesPassedFilter());
+        assertEquals(1, m.getClassesRewritten());
+        assertEquals(2, m.getScanTime().getCount());
+        assertEquals(1, m.getRewriteTime().getCount());
+        assertEquals("only the rewritten method", 1, m.getFrameComputationTime().getCount());
+        assertEquals(Collections.singletonMap("FIELD legacy Ljava/lang/String;", 1L), m.getInstructionsRewrittenByRule());
+
+        m.reset();
+        assertEquals(0, m.getClassesInspected());
+        assertEquals(0, m.getInstructionsRewritten());
+        assertEquals("counted since the reset", Collections.emptyMap(), m.getInstructionsRewrittenByRule());
+
+        t.transform("Client", generateClient(V1_4), getClass().getClassLoader());
+        assertEquals(1, m.getInstructionsRewritten());
+        assertEquals(Collections.singletonMap("FIELD legacy Ljava/lang/String;", 1L), m.getInstructionsRewrittenByRule());
+    }
+
+    @Test
+    public void testRuleStatistics() throws Exception {
+        Transformer t = new Transformer();
+        t.loadRules(getClass().getClassLoader());
+
+        RuleStatistics legacy = findRule(t, "legacy");
+        assertEquals(0, legacy.getHits());
+        assertNull(legacy.getLastMatchedClass());
+
+        t.transform("Client", generateClient(V1_8), getClass().getClassLoader());
+        t.transform("Client", generateClient(V1_4), getClass().getClassLoader());
+
+        legacy = findRule(t, "legacy");
+        assertEquals("FIELD", legacy.getKind());
+        assertEquals("Ljava/lang/String;", legacy.getDescriptor());
+        assertEquals(Rules.class.getName(), legacy.getOwner());
+        assertEquals(2, legacy.getHits());
+        assertEquals("Client", legacy.getLastMatchedClass());
+
+        // counts survive reloading the same rules
+        t.loadRules(getClass().getClassLoader());
+        assertEquals(2, findRule(t, "legacy").getHits());
+    }
+
+    @Test
+    public void testComposedRuleKeepsCounting() {
+        Type owner = Type.getType(Rules.class);
+        MemberAdapter getter = new MemberAdapter(owner) {
+            @Override
+            String describe() {
+                return "getter";
+            }
+        };
+        MemberTransformSpec current = new MemberTransformSpec(Kind.FIELD);
+        current.addRewriteSpec("legacy", "Ljava/lang/String;", getter);
+
+        MemberTransformSpec next = new MemberTransformSpec(current);
+        next.addRewriteSpec("legacy", "Ljava/lang/String;", new MemberAdapter(owner) {
+            @Override
+            String describe() {
+                return "setter";
+            }
+        });
+        MemberAdapter composed = next.get("legacy", "Ljava/lang/String;")[0];
+        assertNotSame(getter, composed);
+
+        // the current rules are still in use while the next ones are being installed
+        getter.hit("Client");
+        assertEquals(1, composed.hits.sum());
+    }
+
+    @Test
+    public void testLoadRulesConcurrently() throws Exception {
+        ClassLoader cl = getClass().getClassLoader();
+        Transformer serial = new Transformer();
+        serial.loadRules(cl);
+
+        Transformer t = new Transformer();
+        URLClassLoader child = new URLClassLoader(new URL[0], cl);
+        t.loadRules(Arrays.asList(cl, child), ForkJoinPool.commonPool());
+        assertEquals("the same rules as reflection finds", serial.getRulesFingerprint(), t.getRulesFingerprint());
+        assertEquals(1, t.getRulesGeneration());
+
+        byte[] client = generateClient(V1_8);
+        assertArrayEquals(serial.transform("Client", client, cl), t.transform("Client", client, cl));
+    }
+
+    @Test
+    public void testTransformAll() throws Exception {
+        Transformer t = new Transformer();
+        t.loadRules(getClass().getClassLoader());
+
+        ClassLoader cl = getClass().getClassLoader();
+        byte[] unrelated = imageOf(getClass());
+        List<ClassImage> images = new ArrayList<ClassImage>();
+        for (int i=0; i<20; i++) {
+            images.add(new ClassImage("Client", generateClient(i%2==0 ? V1_8 : V1_4), cl));
+            images.add(new ClassImage(getClass().getName(), unrelated, cl));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            List<byte[]> r = t.transformAll(images, pool);
+            assertEquals(images.size(), r.size());
+            for (int i=0; i<r.size(); i++) {
+                byte[] expected = t.transform(images.get(i).getClassName(), images.get(i).getImage(), cl);
+                assertArrayEquals(expected, r.get(i));
+            }
+            assertSame(unrelated, r.get(1));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testFilters() throws Exception {
+        Transformer t = new Transformer();
+        t.loadRules(getClass().getClassLoader());
+        ClassLoader cl = getClass().getClassLoader();
+        byte[] client = generateClient(V1_8);
+
+        t.setClassNameFilter(ClassNameFilter.exclude(Collections.singletonList("Cli")));
+        assertSame(client, t.transform("Client", client, cl));
+        t.setClassNameFilter(ClassNameFilter.JDK);
+        assertNotSame(client, t.transform("Client", client, cl));
+
+        t.setClassLoaderFilter(ClassNameFilter.exclude(Collections.singletonList(cl.getClass().getName())));
+        assertSame(client, t.transform("Client", client, cl));
+        t.setClassLoaderFilter(null);
+
+        t.setSkipLoadersWithoutRules(true);
+        try (URLClassLoader isolated = new URLClassLoader(new URL[0], null)) {
+            assertSame("can't see Rules", client, t.transform("Client", client, isolated));
+        }
+        assertNotSame(client, t.transform("Client", client, cl));
+        assertEquals(3, t.getMetrics().getClassesExcluded());
+    }
+
+    @Test
+    public void testCheckOwnerHierarchy() throws Exception {
+        Transformer t = new Transformer();
+        t.loadRules(getClass().getClassLoader());
+        ClassLoader cl = getClass().getClassLoader();
+        byte[] unrelated = generateReference("java/lang/Integer");
+        byte[] unknown = generateReference("does/not/Exist");
+        byte[] client = generateClient(V1_8);
+
+        assertNotSame("owner isn't looked at by default", unrelated, t.transform("Ref", unrelated, cl));
+
+        t.setCheckOwnerHierarchy(true);
+        assertSame(unrelated, t.transform("Ref", unrelated, cl));
+        assertEquals(1, t.getMetrics().getUnrelatedReferences());
+        assertNotSame("can't tell", unknown, t.transform("Ref", unknown, cl));
+        assertNotSame(client, t.transform("Client", client, cl));
+    }
+
+    @Test
+    public void testResolveTypeChecks() throws Exception {
+        Transformer t = new Transformer();
+        t.loadRules(getClass().getClassLoader());
+        t.setResolveTypeChecks(true);
+        ClassLoader cl = getClass().getClassLoader();
+
+        byte[] rewritten = t.transform("Client", generateClient(V1_8), cl);
+        assertEquals(1, t.getMetrics().getResolvedReferences());
+        Class<?> c = defineClient(rewritten);
+        assertNoCheckerMethods(c);
+        Rules.current = "z";
+        assertEquals("z", c.getMethod("touched").invoke(null));
+
+        byte[] unknown = generateReference("does/not/Exist");
+        byte[] checked = t.transform("Ref", unknown, cl);
+        assertTrue("checked at runtime", new String(checked, StandardCharsets.ISO_8859_1).contains("____isAssignableFrom"));
+        assertEquals(1, t.getMetrics().getResolvedReferences());
+    }
+
+    @Test
+    public void testSharedTypeCheck() throws Exception {
+        Transformer t = new Transformer();
+        t.loadRules(getClass().getClassLoader());
+        t.setSharedTypeCheck(true);
+
+        byte[] rewritten = t.transform("Client", generateClient(V1_8), getClass().getClassLoader());
+        Class<?> c = defineClient(rewritten);
+        assertNoCheckerMethods(c);
+        Rules.current = "x";
+        assertEquals("x", c.getMethod("touched").invoke(null));
+    }
+
+    @Test
+    public void testInvokeDynamic() throws Exception {
+        Transformer t = new Transformer();
+        t.loadRules(getClass().getClassLoader());
+        t.setInvokeDynamic(true);
+
+        byte[] rewritten = t.transform("Client", generateClient(V1_8), getClass().getClassLoader());
+        Class<?> c = defineClient(rewritten);
+        assertNoCheckerMethods(c);
+        assertTrue(refersTo(rewritten, AdapterBootstrap.class));
+        Rules.current = "y";
+        assertEquals("y", c.getMethod("touched").invoke(null));
+        assertEquals(1, findRule(t, "legacy").getHits());
+
+        // class files older than Java 7 can't have invokedynamic
+        byte[] old = t.transform("Client", generateClient(V1_4), getClass().getClassLoader());
+        assertFalse(refersTo(old, AdapterBootstrap.class));
+
+        // no rule applies to these owners, so the call sites link to the original fields
+        assertEquals("own", define("Own", t.transform("Own", generateOwnLegacy(), getClass().getClassLoader())).getMethod("get").invoke(null));
+        assertEquals("base", define("Sub", t.transform("Sub", generateSubclass(), getClass().getClassLoader())).getMethod("get").invoke(null));
+    }
+
+    /**
+     * Generates a class with a field of the same name and type as {@code Rules.legacy},
+     * which is final and so can only be set from the class initializer.
+     */
+    private static byte[] generateOwnLegacy() {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_8, ACC_PUBLIC, "Own", null, "java/lang/Object", null);
+        cw.visitField(ACC_STATIC | ACC_FINAL, "legacy", "Ljava/lang/String;", null, null).visitEnd();
+
+        MethodVisitor mv = cw.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
+        mv.visitCode();
+        mv.visitLdcInsn("own");
+        mv.visitFieldInsn(PUTSTATIC, "Own", "legacy", "Ljava/lang/String;");
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "get", "()Ljava/lang/Object;", null, null);
+        mv.visitCode();
+        mv.visitFieldInsn(GETSTATIC, "Own", "legacy", "Ljava/lang/String;");
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    /**
+     * Generates a subclass of {@link Base} in another package, which reads the protected field of its superclass.
+     */
+    private static byte[] generateSubclass() {
+        String base = Type.getInternalName(Base.class);
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_8, ACC_PUBLIC, "Sub", null, base, null);
+
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, base, "<init>", "()V", false);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "get", "()Ljava/lang/Object;", null, null);
+        mv.visitCode();
+        mv.visitTypeInsn(NEW, "Sub");
+        mv.visitInsn(DUP);
+        mv.visitMethodInsn(INVOKESPECIAL, "Sub", "<init>", "()V", false);
+        mv.visitFieldInsn(GETFIELD, base, "legacy", "Ljava/lang/String;");
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    /**
+     * Generates a class that reads a field with the name and the type of {@code Rules.legacy} from the given owner.
+     */
+    private static byte[] generateReference(String owner) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_8, ACC_PUBLIC, "Ref", null, "java/lang/Object", null);
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "get", "()Ljava/lang/Object;", null, null);
+        mv.visitCode();
+        mv.visitFieldInsn(GETSTATIC, owner, "legacy", "Ljava/lang/String;");
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static boolean refersTo(byte[] image, Class<?> c) {
+        return new String(image, StandardCharsets.ISO_8859_1).contains(Type.getInternalName(c));
+    }
+
+    private static RuleStatistics findRule(Transformer t, String name) {
+        for (RuleStatistics s : t.getRuleStatistics()) {
+            if (s.getName().equals(name) && s.getOwner().equals(Rules.class.getName()))
+                return s;
+        }
+        throw new AssertionError("no rule for "+name);
+    }
+
+    /**
+     * Defines a class in a class loader of its own.
+     */
+    private Class<?> define(final String className, final byte[] image) throws ClassNotFoundException {
+        return new ClassLoader(getClass().getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                if (!name.equals(className))    throw new ClassNotFoundException(name);
+                return defineClass(name, image, 0, image.length);
+            }
+        }.loadClass(className);
+    }
+
+    private Class<?> defineClient(byte[] image) throws ClassNotFoundException {
+        return define("Client", image);
+    }
+
+    /**
+     * Asserts that the type checks of a rewritten class don't need the checker methods generated into it.
+     */
+    private static void assertNoCheckerMethods(Class<?> c) {
+        for (Method m : c.getDeclaredMethods())
+            assertFalse(m.getName(), m.getName().startsWith("____isAssignableFrom"));
+    }
+
+    /**
+     * Generates a class that reads {@code Rules.legacy} in one method, and merges two unknown types in another.
+     */
+    static byte[] generateClient(int version) {
+        boolean frames = version >= V1_6;
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(version, ACC_PUBLIC, "Client", null, "java/lang/Object", null);
+
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "touched", "()Ljava/lang/Object;", null, null);
+        mv.visitCode();
+        mv.visitFieldInsn(GETSTATIC, Type.getInternalName(Rules.class), "legacy", "Ljava/lang/String;");
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "untouched", "(Z)Ljava/lang/Object;", null, null);
+        mv.visitCode();
+        Label other = new Label(), join = new Label();
+        mv.visitVarInsn(ILOAD, 0);
+        mv.visitJumpInsn(IFEQ, other);
+        mv.visitInsn(ACONST_NULL);
+        mv.visitTypeInsn(CHECKCAST, "does/not/Exist1");
+        mv.visitVarInsn(ASTORE, 1);
+        mv.visitJumpInsn(GOTO, join);
+        mv.visitLabel(other);
+        if (frames) mv.visitFrame(F_FULL, 1, new Object[] {INTEGER}, 0, null);
+        mv.visitInsn(ACONST_NULL);
+        mv.visitTypeInsn(CHECKCAST, "does/not/Exist2");
+        mv.visitVarInsn(ASTORE, 1);
+        mv.visitLabel(join);
+        if (frames) mv.visitFrame(F_FULL, 2, new Object[] {INTEGER, "java/lang/Object"}, 0, null);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    public static class Rules {
+        @AdaptField(name = "legacy", was = String.class)
+        public static Object current;
+    }
+
+    /**
+     * Has a field of the same name and type as {@code Rules.legacy}, but unrelated to it.
+     */
+    public static class Base {
+        protected String legacy = "base";
+    }
+}
@@ -0,0 +1,20 @@
+package org.jenkinsci.bytecode;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TypeCheckSupportTest {
+    @Test
+    public void testIsAssignableFrom() {
+        assertTrue(TypeCheckSupport.isAssignableFrom(ArrayList.class, "java.util.ArrayList"));
+        assertTrue(TypeCheckSupport.isAssignableFrom(ArrayList.class, "java.util.AbstractList"));
+        assertTrue("interface of a superclass", TypeCheckSupport.isAssignableFrom(ArrayList.class, "java.util.Collection"));
+        assertTrue(TypeCheckSupport.isAssignableFrom(ArrayList.class, "java.lang.Object"));
+        assertFalse(TypeCheckSupport.isAssignableFrom(ArrayList.class, "java.util.LinkedList"));
+        assertFalse(TypeCheckSupport.isAssignableFrom(Object.class, "java.util.ArrayList"));
+    }
+}
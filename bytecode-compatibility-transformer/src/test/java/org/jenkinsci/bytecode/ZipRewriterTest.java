@@ -0,0 +1,97 @@
+package org.jenkinsci.bytecode;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ZipRewriterTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testReplaceEntry() throws Exception {
+        byte[] stored = "stored".getBytes(StandardCharsets.UTF_8);
+        byte[] deflated = new byte[10000];  // compresses well
+        byte[] replaced = "replaced".getBytes(StandardCharsets.UTF_8);
+
+        File in = tmp.newFile("in.zip");
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(in))) {
+            zos.setComment("comment");
+            ZipEntry e = new ZipEntry("stored.txt");
+            e.setMethod(ZipEntry.STORED);
+            e.setSize(stored.length);
+            CRC32 crc = new CRC32();
+            crc.update(stored);
+            e.setCrc(crc.getValue());
+            zos.putNextEntry(e);
+            zos.write(stored);
+            // ZipOutputStream writes the sizes of deflated entries after the data
+            zos.putNextEntry(new ZipEntry("deflated.bin"));
+            zos.write(deflated);
+            zos.putNextEntry(new ZipEntry("dir/"));
+            zos.putNextEntry(new ZipEntry("dir/Replaced.class"));
+            zos.write("original".getBytes(StandardCharsets.UTF_8));
+        }
+
+        File out = tmp.newFile("out.zip");
+        assertTrue(ZipRewriter.rewrite(in, out, Collections.singletonMap("dir/Replaced.class", replaced)));
+
+        try (ZipFile zip = new ZipFile(out)) {
+            assertEquals(4, zip.size());
+            assertEquals("comment", zip.getComment());
+            assertArrayEquals(stored, read(zip, "stored.txt"));
+            assertEquals(ZipEntry.STORED, zip.getEntry("stored.txt").getMethod());
+            assertArrayEquals(deflated, read(zip, "deflated.bin"));
+            assertTrue(zip.getEntry("dir/").isDirectory());
+            assertArrayEquals(replaced, read(zip, "dir/Replaced.class"));
+            try (ZipFile original = new ZipFile(in)) {
+                assertEquals("copied as is", original.getEntry("deflated.bin").getCompressedSize(), zip.getEntry("deflated.bin").getCompressedSize());
+            }
+        }
+
+        // the local headers are consistent too
+        try (ZipInputStream zis = new ZipInputStream(new FileInputStream(out))) {
+            assertEquals("stored.txt", zis.getNextEntry().getName());
+            assertArrayEquals(stored, IOUtils.toByteArray(zis));
+            assertEquals("deflated.bin", zis.getNextEntry().getName());
+            assertArrayEquals(deflated, IOUtils.toByteArray(zis));
+            assertEquals("dir/", zis.getNextEntry().getName());
+            assertEquals("dir/Replaced.class", zis.getNextEntry().getName());
+            assertArrayEquals(replaced, IOUtils.toByteArray(zis));
+            assertNull(zis.getNextEntry());
+        }
+    }
+
+    @Test
+    public void testNotAZipFile() throws Exception {
+        File in = tmp.newFile("in.zip");
+        FileUtils.writeStringToFile(in, "not a zip file", StandardCharsets.UTF_8);
+        assertFalse(ZipRewriter.rewrite(in, tmp.newFile("out.zip"), Collections.<String,byte[]>emptyMap()));
+    }
+
+    private static byte[] read(ZipFile zip, String name) throws Exception {
+        try (InputStream in = zip.getInputStream(zip.getEntry(name))) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+}
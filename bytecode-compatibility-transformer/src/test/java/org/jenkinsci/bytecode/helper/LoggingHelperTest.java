@@ -9,7 +9,9 @@ import java.util.logging.Logger;
 
 import org.junit.Test;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.hamcrest.CoreMatchers.is;
 
 public class LoggingHelperTest {
@@ -45,13 +47,73 @@ public class LoggingHelperTest {
         assertThat(h.records.get(0).getSourceMethodName(), is("testSourceCorrectlySetWhenLoggingAMessage"));
     }
 
+    @Test
+    public void testFixedArityParameters() throws Exception {
+        CapturingLogHandler h = new CapturingLogHandler();
+        Logger logger = Logger.getLogger("test-parameters-logger");
+        logger.addHandler(h);
+
+        LoggingHelper.asyncLog(logger, Level.INFO, "{0} {1} {2}", "a", 1, null);
+        while (h.records.size() < 1) {
+            Thread.sleep(50L);
+        }
+        assertArrayEquals(new Object[] {"a", 1, null}, h.records.get(0).getParameters());
+        assertThat(h.records.get(0).getSourceMethodName(), is("testFixedArityParameters"));
+    }
+
+    @Test
+    public void testOverflowIsCounted() throws Exception {
+        CapturingLogHandler h = new CapturingLogHandler();
+        Logger logger = Logger.getLogger("test-overflow-logger");
+        logger.addHandler(h);
+
+        int capacity = LoggingHelper.getCapacity();
+        long dropped = LoggingHelper.getDroppedCount();
+        LoggingHelper.setCapacity(0);
+        try {
+            LoggingHelper.asyncLog(logger, Level.INFO, "this is dropped");
+        } finally {
+            LoggingHelper.setCapacity(capacity);
+        }
+        assertEquals(dropped + 1, LoggingHelper.getDroppedCount());
+
+        LoggingHelper.asyncLog(logger, Level.INFO, "this is not");
+        while (h.records.size() < 1) {
+            Thread.sleep(50L);
+        }
+        assertThat(h.records.get(0).getMessage(), is("this is not"));
+    }
+
+    @Test
+    public void testDispatcherSurvivesErrors() throws Exception {
+        CapturingLogHandler h = new CapturingLogHandler() {
+            @Override
+            public void publish(LogRecord record) {
+                if (record.getMessage().equals("boom"))
+                    throw new LinkageError(record.getMessage());
+                super.publish(record);
+            }
+        };
+        Logger logger = Logger.getLogger("test-error-logger");
+        logger.addHandler(h);
+
+        LoggingHelper.asyncLog(logger, Level.INFO, "boom");
+        LoggingHelper.asyncLog(logger, Level.INFO, "after");
+        while (h.records.size() < 1) {
+            Thread.sleep(50L);
+        }
+        assertThat(h.records.get(0).getMessage(), is("after"));
+        assertNull("doesn't pin the loader of whoever logged first", h.contextClassLoader);
+    }
 
     private static class CapturingLogHandler extends Handler {
 
         private List<LogRecord> records = new ArrayList<>();
+        private volatile ClassLoader contextClassLoader;
 
         @Override
         public void publish(LogRecord record) {
+            contextClassLoader = Thread.currentThread().getContextClassLoader();
             records.add(record);
         }
 
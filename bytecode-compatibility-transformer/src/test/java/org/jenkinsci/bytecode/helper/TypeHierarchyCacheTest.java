@@ -0,0 +1,70 @@
+package org.jenkinsci.bytecode.helper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Type;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertEquals;
+
+public class TypeHierarchyCacheTest {
+
+    @Test
+    public void testHierarchiesAreOnlyReadOnce() {
+        TypeHierarchyCache cache = new TypeHierarchyCache();
+        CountingReader r1 = new CountingReader(getClass().getClassLoader(), cache);
+
+        assertThat(r1.getCommonSuperClass("java/util/HashSet", "java/util/TreeSet"), is("java/util/AbstractSet"));
+        int reads = r1.reads;
+
+        // a second reader for the same class loader shares what the first one has read
+        CountingReader r2 = new CountingReader(getClass().getClassLoader(), cache);
+        assertThat(r2.getCommonSuperClass("java/util/TreeSet", "java/util/HashSet"), is("java/util/AbstractSet"));
+        assertEquals(0, r2.reads);
+        assertThat(r1.reads, is(reads));
+    }
+
+    @Test
+    public void testCacheIsBoundedPerClassLoader() {
+        TypeHierarchyCache cache = new TypeHierarchyCache(2);
+        CountingReader r = new CountingReader(getClass().getClassLoader(), cache);
+
+        for (Class<?> c : new Class<?>[] {ArrayList.class, HashSet.class, LinkedHashSet.class}) {
+            r.hierarchyOf(Type.getType(c));
+        }
+        assertEquals(3, r.reads);
+
+        // the most recently added entry is never the one to go
+        r.hierarchyOf(Type.getType(LinkedHashSet.class));
+        assertEquals(3, r.reads);
+    }
+
+    @Test
+    public void testUncachedReaderAlwaysReads() {
+        CountingReader r = new CountingReader(getClass().getClassLoader(), null);
+        r.hierarchyOf(Type.getType(Set.class));
+        r.hierarchyOf(Type.getType(Set.class));
+        assertEquals(2, r.reads);
+    }
+
+    private static class CountingReader extends ClassLoadingReferenceTypeHierachyReader {
+        int reads;
+
+        CountingReader(ClassLoader classLoader, TypeHierarchyCache cache) {
+            super(classLoader, cache);
+        }
+
+        @Override
+        protected ClassReader reader(Type t) throws IOException {
+            reads++;
+            return super.reader(t);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.jenkinsci.bytecode.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+import org.apache.maven.project.MavenProject;
+import org.jenkinsci.bytecode.JarTransformer;
+import org.jenkinsci.bytecode.Transformer;
+
+/**
+ * Applies the rules found in the runtime classpath of the project to jar files,
+ * so that they don't need to be transformed when they are loaded.
+ *
+ * @see JarTransformer
+ */
+@Mojo(name="transform", defaultPhase=LifecyclePhase.PACKAGE, requiresDependencyResolution=ResolutionScope.RUNTIME, threadSafe=true)
+public class TransformMojo extends AbstractMojo {
+    @Parameter(defaultValue="${project}", readonly=true, required=true)
+    private MavenProject project;
+
+    /**
+     * Where the rules are loaded from, and where the classes that the transformed jars refer to are looked up.
+     */
+    @Parameter(defaultValue="${project.runtimeClasspathElements}", readonly=true, required=true)
+    private List<String> classpathElements;
+
+    /**
+     * Jar files to transform. Defaults to the artifact of the project.
+     */
+    @Parameter
+    private List<File> jars;
+
+    /**
+     * Directory to write the transformed jars to, with the same file names.
+     */
+    @Parameter(defaultValue="${project.build.directory}/bct", required=true)
+    private File outputDirectory;
+
+    @Parameter(property="bct.skip", defaultValue="false")
+    private boolean skip;
+
+    public void execute() throws MojoExecutionException {
+        if (skip) {
+            getLog().info("Skipping the transformation");
+            return;
+        }
+
+        List<File> jars = this.jars;
+        if (jars==null || jars.isEmpty()) {
+            File artifact = project.getArtifact().getFile();
+            if (artifact==null || !artifact.isFile())
+                throw new MojoExecutionException("No jar to transform. Run the package phase first, or specify <jars>");
+            jars = new ArrayList<File>();
+            jars.add(artifact);
+        }
+
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs())
+            throw new MojoExecutionException("Failed to create "+outputDirectory);
+
+        try {
+            List<URL> urls = new ArrayList<URL>();
+            for (String e : classpathElements)
+                urls.add(new File(e).toURI().toURL());
+
+            // parented by our realm, so that the rules see the same annotations as the transformer
+            try (URLClassLoader rules = new URLClassLoader(urls.toArray(new URL[0]), getClass().getClassLoader())) {
+                Transformer t = new Transformer();
+                t.loadRules(rules);
+                JarTransformer jt = new JarTransformer(t);
+
+                for (File jar : jars) {
+                    File dst = new File(outputDirectory, jar.getName());
+                    try (URLClassLoader cl = new URLClassLoader(new URL[] {jar.toURI().toURL()}, rules)) {
+                        if (jt.transform(jar, dst, cl))
+                            getLog().info("Transformed "+jar+" to "+dst);
+                        else
+                            getLog().info("No class needed transformation in "+jar);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to transform jars", e);
+        }
+    }
+}